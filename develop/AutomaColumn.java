@@ -0,0 +1,167 @@
+package it.ivert.kiop.pda.service.csv;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAccessor;
+import java.util.function.Function;
+
+/**
+ * Column of an Automa export layout.
+ *
+ * @param name         header of the column.
+ * @param extractor    reads the raw value of the column from the row, {@code null} when missing.
+ * @param csvExtractor reads the value written in the csv, the raw value unless the csv reuses a text cached in the row.
+ * @param formatter    appends the csv text of the raw value to the row buffer.
+ * @param type         json type of the column in the NDJSON export.
+ * @param requiresIban whether the column needs the encrypted IBAN of the row.
+ */
+public record AutomaColumn(String name, Function<AutomaRow, Object> extractor, Function<AutomaRow, Object> csvExtractor, Formatter formatter,
+                           Type type, boolean requiresIban) {
+
+    public static final ZoneId ZONE = ZoneId.of("Europe/Rome");
+
+    public static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("dd/MM/yyyy");
+
+    public static final DateTimeFormatter ISO_DATE_FORMATTER = DateTimeFormatter.ISO_LOCAL_DATE;
+
+    /**
+     * Appends a value to the row buffer without materializing an intermediate {@link String} when possible.
+     */
+    @FunctionalInterface
+    public interface Formatter {
+        void format(Object value, StringBuilder out);
+    }
+
+    /**
+     * How the value of a column is written in the NDJSON export; a missing value is always written as {@code null}.
+     */
+    public enum Type {
+        /**
+         * The csv text of the value as a json string.
+         */
+        TEXT,
+
+        /**
+         * A {@link Number} written as a json number, with the same digits as the csv.
+         */
+        NUMBER,
+
+        /**
+         * A date written as an ISO-8601 {@code yyyy-MM-dd} json string, and as {@code dd/MM/yyyy} in the csv, the format
+         * typed in the mandate portals.
+         */
+        DATE,
+
+        /**
+         * A {@link Boolean} written as a json boolean, and as {@code VERO}/{@code FALSO} in the csv.
+         */
+        FLAG
+    }
+
+    private static final Formatter TEXT = (value, out) -> {
+        if (value instanceof CharSequence text) {
+            out.append(text);
+        } else if (value instanceof Long number) {
+            out.append(number.longValue());
+        } else if (value != null) {
+            out.append(value);
+        }
+    };
+
+    private static final Formatter UPPER = (value, out) -> {
+        CharSequence text = value instanceof CharSequence sequence ? sequence : value != null ? value.toString() : "";
+
+        for (int i = 0; i < text.length(); i++) {
+            out.append(Character.toUpperCase(text.charAt(i)));
+        }
+    };
+
+    private static final Formatter NUMBER = (value, out) -> {
+        if (value instanceof Long number) {
+            out.append(number.longValue());
+        } else if (value instanceof Integer number) {
+            out.append(number.intValue());
+        } else if (value != null) {
+            out.append(value);
+        }
+    };
+
+    private static final Formatter DATE = (value, out) -> formatDate(DATE_FORMATTER, value, out);
+
+    private static final Formatter FLAG = (value, out) -> {
+        if (value != null) {
+            out.append(Boolean.TRUE.equals(value) ? "VERO" : "FALSO");
+        }
+    };
+
+    public static AutomaColumn text(String name, Function<AutomaRow, Object> extractor) {
+        return new AutomaColumn(name, extractor, extractor, TEXT, Type.TEXT, false);
+    }
+
+    public static AutomaColumn upper(String name, Function<AutomaRow, Object> extractor) {
+        return new AutomaColumn(name, extractor, extractor, UPPER, Type.TEXT, false);
+    }
+
+    public static AutomaColumn number(String name, Function<AutomaRow, Object> extractor) {
+        return new AutomaColumn(name, extractor, extractor, NUMBER, Type.NUMBER, false);
+    }
+
+    public static AutomaColumn date(String name, Function<AutomaRow, Object> extractor) {
+        return new AutomaColumn(name, extractor, extractor, DATE, Type.DATE, false);
+    }
+
+    /**
+     * Date column of the PDA creation date: the csv reuses the text formatted once per row by {@link AutomaRow#createDate},
+     * the NDJSON export reads the date itself.
+     */
+    public static AutomaColumn createDate(String name) {
+        return new AutomaColumn(name, row -> row.pda().getCreateDate(), AutomaRow::createDate, DATE, Type.DATE, false);
+    }
+
+    public static AutomaColumn flag(String name, Function<AutomaRow, Object> extractor) {
+        return new AutomaColumn(name, extractor, extractor, FLAG, Type.FLAG, false);
+    }
+
+    public static AutomaColumn iban(String name) {
+        return new AutomaColumn(name, AutomaRow::iban, AutomaRow::iban, TEXT, Type.TEXT, true);
+    }
+
+    /**
+     * Placeholder column of the layout, always empty in the csv and {@code null} in the NDJSON export.
+     */
+    public static AutomaColumn empty(String name) {
+        return new AutomaColumn(name, row -> null, row -> null, TEXT, Type.TEXT, false);
+    }
+
+    public void format(AutomaRow row, StringBuilder out) {
+        formatter.format(csvExtractor.apply(row), out);
+    }
+
+    /**
+     * Reads the raw value of the column and, when present, appends its csv text to the row buffer.
+     *
+     * @return the raw value, {@code null} when missing.
+     */
+    public Object formatValue(AutomaRow row, StringBuilder out) {
+        Object value = extractor.apply(row);
+        if (value != null) {
+            formatter.format(value, out);
+        }
+        return value;
+    }
+
+    /**
+     * Appends a date of a {@link Type#DATE} column in the given format, at the Rome zone for an {@link Instant}. A text
+     * is a date already formatted for the csv.
+     */
+    static void formatDate(DateTimeFormatter dateFormatter, Object value, StringBuilder out) {
+        if (value instanceof CharSequence text) {
+            out.append(text);
+        } else if (value instanceof Instant instant) {
+            dateFormatter.formatTo(instant.atZone(ZONE), out);
+        } else if (value instanceof TemporalAccessor date) {
+            dateFormatter.formatTo(date, out);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package it.ivert.kiop.pda.service.csv;
+
+import it.ivert.kiop.shared.web.rest.errors.BadRequestAlertException;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Saved column subsets of the Automa layouts, configured as
+ * {@code application.automa-export.profiles.<name>} lists of column headers, see {@link AutomaExportOptions#profile}.
+ */
+@Component
+public class AutomaColumnProfiles {
+
+    private final Map<String, List<String>> profiles = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    public AutomaColumnProfiles(Environment environment) {
+        Binder.get(environment)
+            .bind("application.automa-export.profiles", Bindable.mapOf(String.class, String[].class))
+            .ifBound(bound -> bound.forEach((name, columns) -> profiles.put(name, Arrays.stream(columns).map(String::trim).toList())));
+    }
+
+    public List<String> get(String profile) {
+        List<String> columns = profiles.get(profile);
+
+        if (columns == null) {
+            throw new BadRequestAlertException("Unknown automa export column profile.", "AutomaExportCSV", "unknownColumnProfile");
+        }
+
+        return columns;
+    }
+}
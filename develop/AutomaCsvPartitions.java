@@ -0,0 +1,76 @@
+package it.ivert.kiop.pda.service.csv;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Spools the rows of a multi-mandate Automa export to one temporary csv per {@code (groupKey, type)} partition,
+ * then writes every partition as an entry of a single ZIP. Temporary files are removed on {@link #close()}.
+ */
+public class AutomaCsvPartitions implements Closeable {
+
+    private final AutomaRowWriter headerWriter = new AutomaRowWriter();
+
+    private final Map<String, Partition> partitions = new LinkedHashMap<>();
+
+    private final AutomaExportMetrics metrics;
+
+    public AutomaCsvPartitions(AutomaExportMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the writer of the partition, creating its spool file and header on first use.
+     */
+    public Writer writer(String key, AutomaCsvSchema schema) throws IOException {
+        Partition partition = partitions.get(key);
+
+        if (partition == null) {
+            Path file = Files.createTempFile("automa-" + key + "-", ".csv");
+            partition = new Partition(file, Files.newBufferedWriter(file, StandardCharsets.UTF_8));
+            partitions.put(key, partition);
+
+            long start = System.nanoTime();
+            int bytes = headerWriter.writeHeader(schema, partition.writer());
+            metrics.of(schema).headerRendered(System.nanoTime() - start, bytes);
+        }
+
+        return partition.writer();
+    }
+
+    public void writeZip(OutputStream outputStream) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(outputStream, StandardCharsets.UTF_8);
+
+        for (Map.Entry<String, Partition> entry : partitions.entrySet()) {
+            entry.getValue().writer().close();
+            zip.putNextEntry(new ZipEntry("automa_" + entry.getKey() + ".csv"));
+            Files.copy(entry.getValue().file(), zip);
+            zip.closeEntry();
+        }
+
+        zip.finish();
+        zip.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Partition partition : partitions.values()) {
+            partition.writer().close();
+            Files.deleteIfExists(partition.file());
+        }
+        partitions.clear();
+    }
+
+    private record Partition(Path file, BufferedWriter writer) {
+    }
+}
@@ -0,0 +1,104 @@
+package it.ivert.kiop.pda.service.csv;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compiled csv layout of a mandate: header and body are both generated from the same column array.
+ */
+public final class AutomaCsvSchema {
+
+    private final String name;
+
+    private final String mandate;
+
+    private final String type;
+
+    private final AutomaColumn[] columns;
+
+    private final boolean requiresIban;
+
+    /**
+     * @param mandate the {@code Constants.MANDATO_*} group of the layout.
+     * @param type    the {@code TypeDTO} id of the layout, {@code null} for the layout shared by the other types of the group.
+     */
+    public AutomaCsvSchema(String mandate, Long type, List<AutomaColumn> columns) {
+        this.name = type != null ? mandate + "-" + type : mandate;
+        this.mandate = mandate;
+        this.type = type != null ? type.toString() : "default";
+        this.columns = columns.toArray(AutomaColumn[]::new);
+        this.requiresIban = columns.stream().anyMatch(AutomaColumn::requiresIban);
+    }
+
+    private AutomaCsvSchema(AutomaCsvSchema layout, List<AutomaColumn> columns) {
+        this.name = layout.name;
+        this.mandate = layout.mandate;
+        this.type = layout.type;
+        this.columns = columns.toArray(AutomaColumn[]::new);
+        this.requiresIban = columns.stream().anyMatch(AutomaColumn::requiresIban);
+    }
+
+    /**
+     * Subset of the layout with the named columns, in the requested order. Names that are not part of this layout are
+     * skipped, since the requested subset can span the layouts of several types. The IBAN is encrypted only when its
+     * column is selected.
+     */
+    public AutomaCsvSchema select(List<String> names) {
+        List<AutomaColumn> selected = new ArrayList<>(names.size());
+
+        for (String name : names) {
+            for (AutomaColumn column : columns) {
+                if (column.name().equals(name)) {
+                    selected.add(column);
+                    break;
+                }
+            }
+        }
+
+        return new AutomaCsvSchema(this, selected);
+    }
+
+    /**
+     * Whether the rows of the given layout can be written under the header of this one: both have the same column
+     * names in the same order.
+     */
+    boolean sameHeader(AutomaCsvSchema other) {
+        if (this == other) {
+            return true;
+        }
+        if (columns.length != other.columns.length) {
+            return false;
+        }
+        for (int i = 0; i < columns.length; i++) {
+            if (!columns[i].name().equals(other.columns[i].name())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean hasColumn(String columnName) {
+        return Arrays.stream(columns).anyMatch(column -> column.name().equals(columnName));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getMandate() {
+        return mandate;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public boolean requiresIban() {
+        return requiresIban;
+    }
+
+    AutomaColumn[] columns() {
+        return columns;
+    }
+}
@@ -0,0 +1,279 @@
+package it.ivert.kiop.pda.service.csv;
+
+import it.ivert.kiop.pda.config.Constants;
+import it.ivert.kiop.shared.service.dto.*;
+import it.ivert.kiop.shared.web.rest.errors.BadRequestAlertException;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * Registry of the Automa csv layouts, one for each {@code Constants.MANDATO_*} group and {@link TypeDTO} id.
+ * Layouts are compiled once at startup; a {@code null} type holds the layout used by every other type of the group.
+ */
+@Component
+public class AutomaCsvSchemas {
+
+    private final Map<String, Map<Long, AutomaCsvSchema>> schemas = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    public AutomaCsvSchemas() {
+        this.register(Constants.MANDATO_ENEL_ENERGIA, null, this.enelColumns());
+        this.register(Constants.MANDATO_FASTWEB, 1L, this.fastwebColumns(1L));
+        this.register(Constants.MANDATO_FASTWEB, null, this.fastwebColumns(null));
+    }
+
+    public AutomaCsvSchema get(GenericPdaDTO pda) {
+        return this.get(pda.getGroup().getGroupKey(), pda.getType() != null ? pda.getType().getId() : null);
+    }
+
+    public AutomaCsvSchema get(String groupKey, Long type) {
+        Map<Long, AutomaCsvSchema> groupSchemas = schemas.get(groupKey);
+
+        if (groupSchemas == null) {
+            throw new BadRequestAlertException("Not managed group in automa export csv.", "AutomaExportCSV", "notManagedGroup");
+        }
+
+        AutomaCsvSchema schema = groupSchemas.get(type);
+        return schema != null ? schema : groupSchemas.get(null);
+    }
+
+    /**
+     * Rejects a column subset naming a column that is part of no layout.
+     */
+    public void validate(List<String> columns) {
+        for (String column : columns) {
+            boolean known = schemas.values().stream()
+                .flatMap(groupSchemas -> groupSchemas.values().stream())
+                .anyMatch(schema -> schema.hasColumn(column));
+
+            if (!known) {
+                throw new BadRequestAlertException("Unknown column in automa export csv: " + column, "AutomaExportCSV", "unknownColumn");
+            }
+        }
+    }
+
+    private void register(String groupKey, Long type, List<AutomaColumn> columns) {
+        schemas.computeIfAbsent(groupKey, key -> new HashMap<>()).put(type, new AutomaCsvSchema(groupKey, type, columns));
+    }
+
+    private List<AutomaColumn> enelColumns() {
+        return List.of(
+            AutomaColumn.text("segmento", pda(p -> p.getType() != null ? p.getType().getName() : null)),
+            AutomaColumn.text("formaGiuridica", customer(CustomerDTO::getFormaGiuridica)),
+            AutomaColumn.text("numeroContrattoPreferica", pda(GenericPdaDTO::getCodeAccount)),
+            AutomaColumn.text("nomePreverifica", customer(CustomerDTO::getNome)),
+            AutomaColumn.text("cognomePreverifica", customer(CustomerDTO::getCognome)),
+            AutomaColumn.text("cfPreverifica", customer(CustomerDTO::getCodFiscale)),
+            AutomaColumn.text("piPreverifica", customer(CustomerDTO::getPartitaIva)),
+            AutomaColumn.empty("dataFirmaInfoContratto"),
+            AutomaColumn.empty("codiceIncaricatoInfoContratto"),
+            AutomaColumn.text("owner", pda(p -> p.getOwnerId() != null ? p.getOwnerId().getScreenName() : null)),
+            AutomaColumn.empty("sottoscrizioneContratto"),
+            AutomaColumn.text("podForniture", pda(GenericPdaDTO::getPod)),
+            AutomaColumn.text("tipoPdaEnergia", pda(GenericPdaDTO::getTipoPdaEnergia)),
+            AutomaColumn.text("capForniture", pda(GenericPdaDTO::getIndirizzoCap)),
+            AutomaColumn.text("localitaForniture", pda(GenericPdaDTO::getIndirizzoCittaTxt)),
+            AutomaColumn.text("tipodocumentoAnagraficaRes",
+                document(d -> d.getTipoDocumento() != null ? d.getTipoDocumento().getDescription() : null)),
+            AutomaColumn.text("numerodocumentoAnagraficaRes", document(DocumentoDTO::getNum)),
+            AutomaColumn.text("rilasciatodaAnagraficaRes",
+                document(d -> d.getEnteRilascioDocumento() != null ? d.getEnteRilascioDocumento().getName() : null)),
+            AutomaColumn.date("rilasciatoilAnagraficaRes", document(DocumentoDTO::getDataRilascio)),
+            AutomaColumn.text("telefonofissoAnagraficaRes", pda(GenericPdaDTO::getTelFisso)),
+            AutomaColumn.text("cellulareAnagraficaRes", customer(CustomerDTO::getCellulare1)),
+            AutomaColumn.text("emailAnagraficaRes", customer(CustomerDTO::getEmail)),
+            AutomaColumn.text("pecAnagraficaRes", customer(CustomerDTO::getEmailPec)),
+            AutomaColumn.text("toponomasticaAddress", pda(p -> p.getToponimo() != null ? p.getToponimo().getName() : null)),
+            AutomaColumn.text("indrizzoAddress", pda(GenericPdaDTO::getIndirizzoVia)),
+            AutomaColumn.text("civicoAddress", pda(GenericPdaDTO::getIndirizzoNum)),
+            AutomaColumn.text("scalaAddress", pda(GenericPdaDTO::getIndirizzoScala)),
+            AutomaColumn.text("pianoCivicoAddress", pda(GenericPdaDTO::getIndirizzoPiano)),
+            AutomaColumn.text("internoAddress", pda(GenericPdaDTO::getIndirizzoInterno)),
+            AutomaColumn.text("capAddress", pda(GenericPdaDTO::getIndirizzoCap)),
+            AutomaColumn.text("comuneAddress", pda(GenericPdaDTO::getIndirizzoCittaTxt)),
+            AutomaColumn.text("provinciaAddress", pda(GenericPdaDTO::getIndirizzoProvinciaSpedizioneTxt))
+        );
+    }
+
+    private List<AutomaColumn> fastwebColumns(Long type) {
+        String lineSuffix = type != null && type == 1 ? "" : " 1";
+        List<AutomaColumn> columns = new ArrayList<>();
+
+        columns.add(AutomaColumn.empty("ID Firma Elettronica"));
+        columns.add(AutomaColumn.empty("Envelope ID"));
+        columns.add(AutomaColumn.empty("Tipo Invio"));
+        columns.add(AutomaColumn.text("Tipo Offerta", pda(p -> p.getPdaType() != null ? Constants.formatPdaType(p.getPdaType()) : null)));
+        columns.add(AutomaColumn.text("Offerta Fissa", pda(p -> p.getOffer() != null ? p.getOffer().getName() : null)));
+        columns.add(AutomaColumn.empty("Offerta Mobile 1"));
+        columns.add(AutomaColumn.empty("Offerta Mobile 2"));
+        columns.add(AutomaColumn.text("Ragione Sociale", customer(CustomerDTO::getRagSociale)));
+        columns.add(AutomaColumn.text("Forma Giuridica", customer(CustomerDTO::getFormaGiuridica)));
+        columns.add(AutomaColumn.text("Partita Iva", customer(CustomerDTO::getPartitaIva)));
+        columns.add(AutomaColumn.text("Account", pda(p -> p.getBackOffice() != null ? p.getBackOffice().getAccount() : null)));
+        columns.add(AutomaColumn.text("Nome", customer(CustomerDTO::getNome)));
+        columns.add(AutomaColumn.text("Cognome", customer(CustomerDTO::getCognome)));
+        columns.add(AutomaColumn.text("Sesso", customer(CustomerDTO::getSesso)));
+        columns.add(AutomaColumn.date("Data Nascita", customer(CustomerDTO::getNascitaData)));
+        columns.add(AutomaColumn.upper("Nazione Nascita", row -> italiaIfEmpty(customer(CustomerDTO::getNascitaNazioneTxt).apply(row))));
+        columns.add(AutomaColumn.upper("Città Nascita", customer(CustomerDTO::getNascitaLuogoTxt)));
+        columns.add(AutomaColumn.text("Provincia Nascita", customer(CustomerDTO::getNascitaProvinciaTxt)));
+        columns.add(AutomaColumn.text("Codice Fiscale", customer(CustomerDTO::getCodFiscale)));
+        columns.add(AutomaColumn.text("Numero Mobile", customer(CustomerDTO::getContattoCellulare)));
+        columns.add(AutomaColumn.text("Numero Fisso", customer(CustomerDTO::getContattoTelefono)));
+        columns.add(AutomaColumn.text("Email", customer(CustomerDTO::getEmail)));
+        columns.add(AutomaColumn.text("Tipo Documento Riconoscimento",
+            document(d -> d.getTipoDocumento() != null ? d.getTipoDocumento().getName() : null)));
+        columns.add(AutomaColumn.text("Numero Documento Riconoscimento", document(DocumentoDTO::getNum)));
+        columns.add(AutomaColumn.text("Emittente Documento Riconoscimento",
+            document(d -> d.getEnteRilascioDocumento() != null ? d.getEnteRilascioDocumento().getName() : null)));
+        columns.add(AutomaColumn.date("Data Rilascio Documento Riconoscimento", document(DocumentoDTO::getDataRilascio)));
+        columns.add(AutomaColumn.upper("Nazionalità Rilascio Documento Riconoscimento",
+            row -> italiaIfEmpty(document(DocumentoDTO::getNazionalitaTxt).apply(row))));
+        columns.add(AutomaColumn.text("Cittadinanza Documento Riconoscimento", document(DocumentoDTO::getCittadinanza)));
+        columns.add(AutomaColumn.upper("Città Rilascio Documento Riconoscimento", document(DocumentoDTO::getLuogoRilascioTxt)));
+        columns.add(AutomaColumn.text("Provincia Rilascio Documento Riconoscimento", document(DocumentoDTO::getProvRilascioTxt)));
+        columns.add(AutomaColumn.upper("Città Residenza", customer(CustomerDTO::getIndirizzoCittaTxt)));
+        columns.add(AutomaColumn.text("Provincia Residenza", customer(CustomerDTO::getIndirizzoProvinciaTxt)));
+        columns.add(AutomaColumn.upper("Indirizzo Residenza", customer(c -> address(c.getIndirizzoToponimo(), c.getIndirizzoVia()))));
+        columns.add(AutomaColumn.text("Civico Residenza", customer(CustomerDTO::getIndirizzoNum)));
+        columns.add(AutomaColumn.text("CAP Residenza", customer(CustomerDTO::getIndirizzoCap)));
+        columns.add(AutomaColumn.flag("Delegato", row -> Boolean.FALSE));
+
+        for (String delegato : List.of(
+            "Nome Delegato",
+            "Cognome Delegato",
+            "Sesso Delegato",
+            "Data Nascita Delegato",
+            "Nazione Nascita Delegato",
+            "Città Nascita Delegato",
+            "Provincia Nascita Delegato",
+            "Codice Fiscale Delegato",
+            "Numero Mobile Delegato",
+            "Email Delegato",
+            "Tipo Documento Riconoscimento Delegato",
+            "Numero Documento Riconoscimento Delegato",
+            "Emittente Documento Riconoscimento Delegato",
+            "Data Documento Riconoscimento Delegato",
+            "Nazionalità Documento Riconoscimento Delegato",
+            "Città Documento Riconoscimento Delegato",
+            "Provincia Documento Riconoscimento Delegato"
+        )) {
+            columns.add(AutomaColumn.empty(delegato));
+        }
+
+        columns.add(AutomaColumn.upper("Città Attivazione", pda(GenericPdaDTO::getIndirizzoCittaTxt)));
+        columns.add(AutomaColumn.text("Provincia Attivazione", pda(GenericPdaDTO::getIndirizzoProvinciaTxt)));
+        columns.add(AutomaColumn.upper("Indirizzo Attivazione", pda(p -> address(p.getToponimo(), p.getIndirizzoVia()))));
+        columns.add(AutomaColumn.text("Civico Attivazione", pda(GenericPdaDTO::getIndirizzoNum)));
+        columns.add(AutomaColumn.text("CAP Attivazione", pda(GenericPdaDTO::getIndirizzoCap)));
+        columns.add(AutomaColumn.text("Scala Attivazione", pda(GenericPdaDTO::getIndirizzoScala)));
+        columns.add(AutomaColumn.text("Piano Attivazione", pda(p -> p.getIndirizzoPiano() != null ? p.getIndirizzoPiano() : "T")));
+        columns.add(AutomaColumn.text("Interno Attivazione", pda(GenericPdaDTO::getIndirizzoInterno)));
+        columns.add(AutomaColumn.empty("Tecnologia Attivazione"));
+        columns.add(AutomaColumn.empty("Scelta Modem"));
+        columns.add(AutomaColumn.text("NP" + lineSuffix, pda(p -> p.getLnanp() != null ? Constants.formatTipoLinea(p.getLnanp()) : null)));
+        columns.add(AutomaColumn.text("Numero Telefonico" + lineSuffix, pda(GenericPdaDTO::getTelFisso)));
+        columns.add(AutomaColumn.text("Codice Migrazione" + lineSuffix, pda(GenericPdaDTO::getNpMigrationCodeVoce)));
+        columns.add(AutomaColumn.text("Operatore Provenienza Fisso" + lineSuffix, pda(GenericPdaDTO::getGestoreFisso)));
+        columns.add(AutomaColumn.empty("Tipo Linea" + lineSuffix));
+        columns.add(AutomaColumn.flag("NP Dati", pda(p -> p.getNpMigrationCodeDati() != null && !p.getNpMigrationCodeDati().isEmpty())));
+        columns.add(AutomaColumn.text("Codice Migrazione Dati", pda(GenericPdaDTO::getNpMigrationCodeDati)));
+        columns.add(AutomaColumn.text("Operatore Provenienza Dati", pda(GenericPdaDTO::getGestoreDati)));
+        columns.add(AutomaColumn.text("Segmento", pda(p -> p.getType() != null ? p.getType().getName() : null)));
+
+        for (String empty : List.of(
+            "Partnership",
+            "Sconto 1",
+            "Opzione Fisso 1",
+            "Opzione Fisso 2",
+            "Opzione Fisso 3",
+            "Seconda linea presente",
+            "NP 2",
+            "Numero Telefonico 2",
+            "Codice Migrazione 2",
+            "Operatore Provenienza Fisso 2",
+            "Tipo Linea 2",
+            "MNP 1",
+            "Numero Sim 1",
+            "ICCID Mobile 1",
+            "Operatore Provenienza Mobile 1",
+            "Tipo Contratto Mobile 1",
+            "Trasferimento Credito Mobile 1",
+            "MNP 2",
+            "Numero Sim 2",
+            "ICCID Mobile 2",
+            "Operatore Provenienza Mobile 2",
+            "Tipo Contratto Mobile 2",
+            "Trasferimento Credito Mobile 2",
+            "MNP 3",
+            "Numero Sim 3",
+            "ICCID Mobile 3",
+            "Operatore Provenienza Mobile 3",
+            "Tipo Contratto Mobile 3",
+            "Trasferimento Credito Mobile 3"
+        )) {
+            columns.add(AutomaColumn.empty(empty));
+        }
+
+        columns.add(AutomaColumn.text("Tipo Pagamento", payment(PagamentoDTO::getPaymentType)));
+        columns.add(AutomaColumn.iban("IBAN"));
+        columns.add(AutomaColumn.text("Intestato a", pda(p -> p.getPagamento() == null || p.getPagamento().getBankCustomerType() == null
+            || p.getPagamento().getBankCustomerType() == 0 ? "CF" : "PIVA")));
+        columns.add(AutomaColumn.empty("Shop ID"));
+        columns.add(AutomaColumn.empty("Payment ID"));
+        columns.add(AutomaColumn.empty("Circuito Carta"));
+        columns.add(AutomaColumn.empty("Numero Carta"));
+        columns.add(AutomaColumn.empty("Scadenza Carta"));
+        columns.add(AutomaColumn.empty("Token Carta"));
+        columns.add(AutomaColumn.upper("Città Spedizione", pda(GenericPdaDTO::getIndirizzoCittaSpedizioneTxt)));
+        columns.add(AutomaColumn.text("Provincia Spedizione", pda(GenericPdaDTO::getIndirizzoProvinciaSpedizioneTxt)));
+        columns.add(AutomaColumn.upper("Indirizzo Spedizione",
+            pda(p -> address(p.getToponimoIndirizzoSpedizione(), p.getIndirizzoViaSpedizione()))));
+        columns.add(AutomaColumn.text("Civico Spedizione", pda(GenericPdaDTO::getIndirizzoNumSpedizione)));
+        columns.add(AutomaColumn.text("CAP Spedizione", pda(GenericPdaDTO::getIndirizzoCapSpedizione)));
+        columns.add(AutomaColumn.empty("Spedizione Presso"));
+        columns.add(AutomaColumn.empty("Utente Creazione"));
+        columns.add(AutomaColumn.empty("Comsy Creazione"));
+        columns.add(AutomaColumn.empty("Ragione Sociale Comsy Creazione"));
+        columns.add(AutomaColumn.empty("Canale Comsy Creazione"));
+        columns.add(AutomaColumn.createDate("Data Creazione"));
+        columns.add(AutomaColumn.createDate("Data Firma"));
+        columns.add(AutomaColumn.empty("Stato Inserimento CPQ"));
+        columns.add(AutomaColumn.empty("Data Inserimento CPQ"));
+        columns.add(AutomaColumn.createDate("Data Modifica"));
+        columns.add(AutomaColumn.empty("Data Scadenza"));
+        columns.add(AutomaColumn.empty("Data Invio SMS"));
+        columns.add(AutomaColumn.number("ID PDA", pda(GenericPdaDTO::getId)));
+
+        return columns;
+    }
+
+    private static Function<AutomaRow, Object> pda(Function<GenericPdaDTO, Object> getter) {
+        return row -> getter.apply(row.pda());
+    }
+
+    private static Function<AutomaRow, Object> customer(Function<CustomerDTO, Object> getter) {
+        return row -> row.pda().getCustomer() != null ? getter.apply(row.pda().getCustomer()) : null;
+    }
+
+    private static Function<AutomaRow, Object> document(Function<DocumentoDTO, Object> getter) {
+        return row -> row.pda().getCustomerDoc() != null ? getter.apply(row.pda().getCustomerDoc()) : null;
+    }
+
+    private static Function<AutomaRow, Object> payment(Function<PagamentoDTO, Object> getter) {
+        return row -> row.pda().getPagamento() != null ? getter.apply(row.pda().getPagamento()) : null;
+    }
+
+    private static Object italiaIfEmpty(Object value) {
+        return value == null || value.toString().isEmpty() ? "ITALIA" : value;
+    }
+
+    private static String address(ToponimoDTO toponimo, String via) {
+        return toponimo != null && toponimo.getName() != null && via != null ? toponimo.getName() + " " + via : null;
+    }
+}
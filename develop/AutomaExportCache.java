@@ -0,0 +1,337 @@
+package it.ivert.kiop.pda.service.csv;
+
+import it.ivert.kiop.shared.service.criteria.GenericPdaCriteria;
+import it.ivert.kiop.shared.service.dto.UserLiferayDTO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.core.Authentication;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Disk cache of finished Automa export files, keyed by a hash of the criteria and of the user scope of the request.
+ * Entries expire after {@code application.automa-export.cache.ttl} and the least recently used ones are evicted once
+ * the cache exceeds {@code application.automa-export.cache.max-size}; an export larger than the limit is served once and
+ * not cached. Only the index is kept in the heap, so files left by a previous run are removed at startup.
+ * <p>
+ * Entries returned by {@link #get} and {@link #put} are held open until closed: an entry invalidated or evicted while
+ * being served keeps its file until the last reader closes it.
+ * <p>
+ * Every entry keeps the id range of the PDAs it lists and the number of PDAs in that range, so {@link #changedSince}
+ * detects an included PDA that was modified, or deleted, after the snapshot even when it no longer matches the
+ * criteria. The check covers every PDA of the range, listed or not, so it can discard an entry that was still valid.
+ */
+@Component
+public class AutomaExportCache {
+
+    private static final Logger log = LoggerFactory.getLogger(AutomaExportCache.class);
+
+    private static final String RANGE_SQL = "select count(*), max(modified_date) from generic_pda where id between ? and ?";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final Path directory;
+
+    private final long maxBytes;
+
+    private final Duration ttl;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public AutomaExportCache(JdbcTemplate jdbcTemplate,
+                             @Value("${application.automa-export.cache.dir:${java.io.tmpdir}/automa-export-cache}") Path directory,
+                             @Value("${application.automa-export.cache.max-size:512MB}") DataSize maxSize,
+                             @Value("${application.automa-export.cache.ttl:10m}") Duration ttl) throws IOException {
+        this.jdbcTemplate = jdbcTemplate;
+        this.directory = Files.createDirectories(directory);
+        this.maxBytes = maxSize.toBytes();
+        this.ttl = ttl;
+
+        try (var files = Files.list(this.directory)) {
+            for (Path file : files.filter(file -> file.toString().endsWith(".export") || file.toString().endsWith(".tmp")).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Normalized key of an export: criteria filters are rendered in their declaration order and users are sorted by id,
+     * so equivalent requests share the same entry.
+     */
+    public String key(String format, GenericPdaCriteria genericPdaCriteria, List<UserLiferayDTO> userLiferayDTO, Authentication authentication) {
+        StringBuilder key = new StringBuilder(format).append('|').append(genericPdaCriteria).append('|');
+
+        userLiferayDTO.stream()
+            .map(UserLiferayDTO::getId)
+            .filter(Objects::nonNull)
+            .sorted()
+            .forEach(id -> key.append(id).append(','));
+
+        key.append('|').append(authentication != null ? authentication.getName() : "");
+
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.toString().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the open entry of the key, to be closed once served, {@code null} when missing or expired.
+     */
+    public Entry get(String key) {
+        Entry entry = entries.get(key);
+
+        if (entry == null) {
+            return null;
+        }
+
+        if (entry.created().plus(ttl).isBefore(Instant.now())) {
+            this.invalidate(key);
+            return null;
+        }
+
+        if (!entry.acquire()) {
+            return null;
+        }
+
+        entry.touch();
+        return entry;
+    }
+
+    /**
+     * Writes a new entry through {@code content} into a temporary file that replaces the previous entry only once complete.
+     * Every entry has its own file, so replacing an entry never touches the file of a reader of the previous one.
+     *
+     * @param snapshot instant the export started reading the PDAs.
+     * @param ids      filled by {@code content} with the ids of the PDAs it writes.
+     * @return the open entry, to be closed once served; it is not cached when larger than the cache.
+     */
+    public Entry put(String key, Instant snapshot, IdRange ids, Content content) throws IOException {
+        Path temp = Files.createTempFile(directory, key, ".tmp");
+
+        try {
+            try (OutputStream outputStream = Files.newOutputStream(temp)) {
+                content.write(outputStream);
+            }
+
+            Path file = directory.resolve(key + "-" + UUID.randomUUID() + ".export");
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+
+            Entry entry = new Entry(file, snapshot, Instant.now(), Files.size(file), ids, ids.isEmpty() ? 0 : this.range(ids).count());
+            entry.acquire();
+
+            if (entry.size() > maxBytes) {
+                entry.retire();
+                return entry;
+            }
+
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                previous.retire();
+            }
+            this.evict();
+
+            return entry;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Whether a PDA of the id range of the entry was modified after its snapshot, or the range lost or gained PDAs.
+     */
+    public boolean changedSince(Entry entry) {
+        if (entry.ids().isEmpty()) {
+            return false;
+        }
+
+        Range range = this.range(entry.ids());
+        return range.count() != entry.rangeCount() || (range.modified() != null && range.modified().isAfter(entry.snapshot()));
+    }
+
+    private Range range(IdRange ids) {
+        return jdbcTemplate.queryForObject(RANGE_SQL, (rs, rowNum) -> {
+            Timestamp modified = rs.getTimestamp(2);
+            return new Range(rs.getLong(1), modified != null ? modified.toInstant() : null);
+        }, ids.min(), ids.max());
+    }
+
+    public void invalidate(String key) {
+        Entry entry = entries.remove(key);
+
+        if (entry != null) {
+            entry.retire();
+        }
+    }
+
+    private synchronized void evict() {
+        long size = entries.values().stream().mapToLong(Entry::size).sum();
+
+        List<Map.Entry<String, Entry>> lru = entries.entrySet().stream()
+            .sorted(Comparator.comparing(entry -> entry.getValue().lastAccess()))
+            .toList();
+
+        for (Map.Entry<String, Entry> entry : lru) {
+            if (size <= maxBytes) {
+                break;
+            }
+            size -= entry.getValue().size();
+            this.invalidate(entry.getKey());
+        }
+    }
+
+    @FunctionalInterface
+    public interface Content {
+        void write(OutputStream outputStream) throws IOException;
+    }
+
+    /**
+     * Lowest and highest id of the PDAs written to an entry.
+     */
+    public static final class IdRange {
+
+        private long min = Long.MAX_VALUE;
+
+        private long max = Long.MIN_VALUE;
+
+        public synchronized void add(long id) {
+            min = Math.min(min, id);
+            max = Math.max(max, id);
+        }
+
+        synchronized boolean isEmpty() {
+            return min > max;
+        }
+
+        synchronized long min() {
+            return min;
+        }
+
+        synchronized long max() {
+            return max;
+        }
+    }
+
+    private record Range(long count, Instant modified) {
+    }
+
+    public static final class Entry implements AutoCloseable {
+
+        private final Path file;
+
+        private final Instant snapshot;
+
+        private final Instant created;
+
+        private final long size;
+
+        private final IdRange ids;
+
+        private final long rangeCount;
+
+        private volatile Instant lastAccess;
+
+        private int readers;
+
+        private boolean retired;
+
+        private Entry(Path file, Instant snapshot, Instant created, long size, IdRange ids, long rangeCount) {
+            this.file = file;
+            this.snapshot = snapshot;
+            this.created = created;
+            this.size = size;
+            this.ids = ids;
+            this.rangeCount = rangeCount;
+            this.lastAccess = created;
+        }
+
+        public Path file() {
+            return file;
+        }
+
+        public Instant snapshot() {
+            return snapshot;
+        }
+
+        public Instant created() {
+            return created;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        IdRange ids() {
+            return ids;
+        }
+
+        long rangeCount() {
+            return rangeCount;
+        }
+
+        Instant lastAccess() {
+            return lastAccess;
+        }
+
+        void touch() {
+            lastAccess = Instant.now();
+        }
+
+        private synchronized boolean acquire() {
+            if (retired) {
+                return false;
+            }
+            readers++;
+            return true;
+        }
+
+        /**
+         * Removes the entry from use: its file is deleted as soon as no reader holds it open.
+         */
+        private synchronized void retire() {
+            retired = true;
+            if (readers == 0) {
+                this.delete();
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            readers--;
+            if (retired && readers == 0) {
+                this.delete();
+            }
+        }
+
+        private void delete() {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.warn("Unable to delete automa export cache file {}", file, e);
+            }
+        }
+    }
+}
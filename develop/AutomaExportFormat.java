@@ -0,0 +1,38 @@
+package it.ivert.kiop.pda.service.csv;
+
+/**
+ * Output formats of an asynchronous Automa export.
+ */
+public enum AutomaExportFormat {
+    /**
+     * Single csv; the header is taken from the first PDA, see {@link CreateAutomaCsv#export}.
+     */
+    CSV("text/csv", ".csv"),
+
+    /**
+     * One json object per PDA and line, see {@link CreateAutomaCsv#exportNdjson}.
+     */
+    NDJSON("application/x-ndjson", ".ndjson"),
+
+    /**
+     * One csv per {@code (groupKey, type)} inside a ZIP, see {@link CreateAutomaCsv#exportZip}.
+     */
+    ZIP("application/zip", ".zip");
+
+    private final String contentType;
+
+    private final String extension;
+
+    AutomaExportFormat(String contentType, String extension) {
+        this.contentType = contentType;
+        this.extension = extension;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+}
@@ -0,0 +1,31 @@
+package it.ivert.kiop.pda.service.csv;
+
+import java.io.Serializable;
+import java.time.Instant;
+
+/**
+ * Status of an asynchronous Automa export job.
+ *
+ * @param id       job id returned on submit.
+ * @param status   current state of the job.
+ * @param format   output format of the job.
+ * @param rowsDone rows written so far.
+ * @param total    rows of the export, {@code null} until the job is done: the export reads the criteria result in
+ *                 pages and the scoped search offers no count.
+ * @param created  submit instant.
+ * @param finished completion instant, {@code null} while the job is queued or running.
+ * @param error    failure message of a failed job.
+ * @param size     bytes of the download, {@code null} until the job is done.
+ * @param checksum hex SHA-256 of the download, {@code null} until the job is done.
+ * @param gzip     whether the download is gzip compressed.
+ */
+public record AutomaExportJobDTO(String id, Status status, AutomaExportFormat format, long rowsDone, Long total, Instant created,
+                                 Instant finished, String error, Long size, String checksum, boolean gzip) implements Serializable {
+
+    public enum Status {
+        QUEUED,
+        RUNNING,
+        DONE,
+        FAILED
+    }
+}
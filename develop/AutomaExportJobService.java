@@ -0,0 +1,257 @@
+package it.ivert.kiop.pda.service.csv;
+
+import it.ivert.kiop.shared.service.criteria.GenericPdaCriteria;
+import it.ivert.kiop.shared.service.dto.UserLiferayDTO;
+import it.ivert.kiop.shared.web.rest.errors.BadRequestAlertException;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.security.core.Authentication;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs Automa exports in the background: a job is submitted with its criteria, spools the export to a file on a
+ * virtual thread and can be polled for progress and downloaded by the user who submitted it once done. Downloads
+ * support HTTP ranges and carry the checksum of the file, see {@link AutomaExportSpool}.
+ * At most {@code application.automa-export.jobs.max-running} jobs run at the same time and every user can have
+ * {@code application.automa-export.jobs.max-per-user} jobs queued or running. Finished jobs and their files are
+ * removed after {@code application.automa-export.jobs.retention}; a file still being downloaded is deleted once the
+ * download ends.
+ * <p>
+ * Jobs are tracked in the memory of the node that accepted them: with several application nodes, status polls and
+ * downloads must reach the same node (sticky sessions), and a restart loses the running and finished jobs. The spool
+ * files left by a previous run are deleted at startup.
+ */
+@Service
+public class AutomaExportJobService {
+
+    private final Logger log = LoggerFactory.getLogger(AutomaExportJobService.class);
+
+    private final CreateAutomaCsv createAutomaCsv;
+
+    private final Path spoolDirectory;
+
+    private final int maxPerUser;
+
+    private final Duration retention;
+
+    private final Semaphore running;
+
+    private final ExecutorService executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("automa-export-", 0).factory());
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+    public AutomaExportJobService(CreateAutomaCsv createAutomaCsv,
+                                  @Value("${application.automa-export.jobs.dir:${java.io.tmpdir}/automa-export-jobs}") Path spoolDirectory,
+                                  @Value("${application.automa-export.jobs.max-running:4}") int maxRunning,
+                                  @Value("${application.automa-export.jobs.max-per-user:2}") int maxPerUser,
+                                  @Value("${application.automa-export.jobs.retention:1h}") Duration retention) throws IOException {
+        this.createAutomaCsv = createAutomaCsv;
+        this.spoolDirectory = Files.createDirectories(spoolDirectory);
+
+        try (var files = Files.list(this.spoolDirectory)) {
+            for (Path file : files.filter(Files::isRegularFile).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+        this.maxPerUser = maxPerUser;
+        this.retention = retention;
+        this.running = new Semaphore(maxRunning, true);
+    }
+
+    public synchronized AutomaExportJobDTO submit(GenericPdaCriteria genericPdaCriteria, List<UserLiferayDTO> userLiferayDTO,
+                                                  Authentication authentication, AutomaExportFormat format, AutomaExportOptions options) {
+        String owner = authentication.getName();
+        long active = jobs.values().stream().filter(job -> job.owner.equals(owner) && job.finished == null).count();
+
+        if (active >= maxPerUser) {
+            throw new BadRequestAlertException("Too many automa export jobs in progress.", "AutomaExportJob", "tooManyJobs");
+        }
+
+        Job job = new Job(UUID.randomUUID().toString(), owner, format, options.isGzip());
+        jobs.put(job.id, job);
+        executor.execute(() -> this.run(job, genericPdaCriteria, userLiferayDTO, authentication, options));
+
+        return job.toDTO();
+    }
+
+    public AutomaExportJobDTO status(String jobId, Authentication authentication) {
+        return this.find(jobId, authentication).toDTO();
+    }
+
+    /**
+     * Serves the spool file of a completed job, resuming from the {@code Range} of the request headers if any.
+     */
+    public ResponseEntity<Resource> download(String jobId, Authentication authentication, HttpHeaders requestHeaders) {
+        Job job = this.completed(jobId, authentication);
+        return AutomaExportSpool.serve(job.spool, "automa_" + job.id + job.format.getExtension(), job.format.getContentType(),
+            requestHeaders);
+    }
+
+    @Scheduled(fixedDelayString = "${application.automa-export.jobs.cleanup-interval:PT5M}")
+    public void cleanup() {
+        Instant expiry = Instant.now().minus(retention);
+
+        jobs.values().removeIf(job -> {
+            if (job.finished == null || job.finished.isAfter(expiry)) {
+                return false;
+            }
+            this.deleteSpool(job);
+            return true;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+        jobs.values().forEach(this::deleteSpool);
+    }
+
+    private Job completed(String jobId, Authentication authentication) {
+        Job job = this.find(jobId, authentication);
+
+        if (job.status != AutomaExportJobDTO.Status.DONE) {
+            throw new BadRequestAlertException("Automa export job not completed.", "AutomaExportJob", "jobNotReady");
+        }
+
+        return job;
+    }
+
+    private Job find(String jobId, Authentication authentication) {
+        Job job = jobs.get(jobId);
+
+        if (job == null || !job.owner.equals(authentication.getName())) {
+            throw new BadRequestAlertException("Automa export job not found.", "AutomaExportJob", "jobNotFound");
+        }
+
+        return job;
+    }
+
+    private void run(Job job, GenericPdaCriteria genericPdaCriteria, List<UserLiferayDTO> userLiferayDTO, Authentication authentication,
+                     AutomaExportOptions options) {
+        try {
+            running.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.fail("interrupted");
+            return;
+        }
+
+        try {
+            job.status = AutomaExportJobDTO.Status.RUNNING;
+            job.file = Files.createTempFile(spoolDirectory, job.id, job.format.getExtension() + (job.gzip ? ".gz" : ""));
+            AutomaExportOptions jobOptions = options.withProgress(job.rowsDone::addAndGet);
+
+            job.spool = AutomaExportSpool.write(job.file, job.gzip, outputStream -> {
+                switch (job.format) {
+                    case CSV -> {
+                        Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+                        createAutomaCsv.export(genericPdaCriteria, userLiferayDTO, authentication, jobOptions, writer);
+                        writer.flush();
+                    }
+                    case NDJSON -> {
+                        Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+                        createAutomaCsv.exportNdjson(genericPdaCriteria, userLiferayDTO, authentication, jobOptions, writer);
+                        writer.flush();
+                    }
+                    case ZIP -> createAutomaCsv.exportZip(genericPdaCriteria, userLiferayDTO, authentication, jobOptions, outputStream);
+                }
+            });
+
+            job.complete();
+        } catch (Exception e) {
+            log.error("Automa export job {} failed", job.id, e);
+            this.deleteSpool(job);
+            job.fail("Export failed.");
+        } finally {
+            running.release();
+        }
+    }
+
+    private void deleteSpool(Job job) {
+        if (job.spool != null) {
+            job.spool.retire();
+            return;
+        }
+
+        try {
+            if (job.file != null) {
+                Files.deleteIfExists(job.file);
+            }
+        } catch (IOException e) {
+            log.warn("Unable to delete spool file of automa export job {}", job.id, e);
+        }
+    }
+
+    private static final class Job {
+
+        private final String id;
+
+        private final String owner;
+
+        private final AutomaExportFormat format;
+
+        private final boolean gzip;
+
+        private final Instant created = Instant.now();
+
+        private final AtomicLong rowsDone = new AtomicLong();
+
+        private volatile AutomaExportJobDTO.Status status = AutomaExportJobDTO.Status.QUEUED;
+
+        private volatile Path file;
+
+        private volatile AutomaExportSpool.SpoolFile spool;
+
+        private volatile Instant finished;
+
+        private volatile String error;
+
+        private Job(String id, String owner, AutomaExportFormat format, boolean gzip) {
+            this.id = id;
+            this.owner = owner;
+            this.format = format;
+            this.gzip = gzip;
+        }
+
+        private void complete() {
+            status = AutomaExportJobDTO.Status.DONE;
+            finished = Instant.now();
+        }
+
+        private void fail(String message) {
+            error = message;
+            status = AutomaExportJobDTO.Status.FAILED;
+            finished = Instant.now();
+        }
+
+        private AutomaExportJobDTO toDTO() {
+            Long total = status == AutomaExportJobDTO.Status.DONE ? rowsDone.get() : null;
+            AutomaExportSpool.SpoolFile done = status == AutomaExportJobDTO.Status.DONE ? spool : null;
+            return new AutomaExportJobDTO(id, status, format, rowsDone.get(), total, created, finished, error,
+                done != null ? done.size() : null, done != null ? done.checksum() : null, gzip);
+        }
+    }
+}
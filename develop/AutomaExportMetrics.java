@@ -0,0 +1,124 @@
+package it.ivert.kiop.pda.service.csv;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micrometer meters of the Automa export pipeline. Stage timers and row counters are tagged by the mandate and type
+ * of the layout; the query timer, which runs before the layout of the rows is known, is tagged {@code all}.
+ * The rows per second are derived from the {@code automa.export.rows} counter by the monitoring backend.
+ */
+@Component
+public class AutomaExportMetrics {
+
+    private static final String ALL = "all";
+
+    private final MeterRegistry registry;
+
+    private final Timer query;
+
+    private final Map<String, SchemaMeters> schemaMeters = new ConcurrentHashMap<>();
+
+    private final Map<String, Counter> referenceCounters = new ConcurrentHashMap<>();
+
+    public AutomaExportMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.query = Timer.builder("automa.export.query")
+            .description("Time spent reading a page of PDAs through findByCriteria")
+            .tags(tags(ALL, ALL))
+            .register(registry);
+    }
+
+    public Timer query() {
+        return query;
+    }
+
+    /**
+     * Meters of the layout, shared by its column subsets.
+     */
+    public SchemaMeters of(AutomaCsvSchema schema) {
+        return schemaMeters.computeIfAbsent(schema.getName(), key -> new SchemaMeters(tags(schema.getMandate(), schema.getType())));
+    }
+
+    /**
+     * Counts the lookups of {@link AutomaReferenceCache}, tagged by reference kind and {@code hit}/{@code miss}.
+     */
+    public void referenceLookup(String kind, int hits, int misses) {
+        if (hits > 0) {
+            this.referenceCounter(kind, "hit").increment(hits);
+        }
+        if (misses > 0) {
+            this.referenceCounter(kind, "miss").increment(misses);
+        }
+    }
+
+    private Counter referenceCounter(String kind, String result) {
+        return referenceCounters.computeIfAbsent(kind + "|" + result, key -> Counter.builder("automa.export.reference.lookups")
+            .description("Reference entity lookups of the export")
+            .tags("kind", kind, "result", result)
+            .register(registry));
+    }
+
+    private static Tags tags(String mandate, String type) {
+        return Tags.of("mandate", mandate, "type", type);
+    }
+
+    public final class SchemaMeters {
+
+        private final Timer iban;
+
+        private final Timer header;
+
+        private final Timer body;
+
+        private final Counter rows;
+
+        private final Counter bytes;
+
+        private final Counter failedRows;
+
+        private SchemaMeters(Tags tags) {
+            this.iban = Timer.builder("automa.export.iban").description("Time spent encrypting the IBANs of a page")
+                .tags(tags).register(registry);
+            this.header = Timer.builder("automa.export.render.header").description("Time spent rendering csv headers")
+                .tags(tags).register(registry);
+            this.body = Timer.builder("automa.export.render.body").description("Time spent rendering csv rows")
+                .tags(tags).register(registry);
+            this.rows = Counter.builder("automa.export.rows").description("Rows exported")
+                .tags(tags).register(registry);
+            this.bytes = Counter.builder("automa.export.bytes").description("UTF-8 bytes exported").baseUnit("bytes")
+                .tags(tags).register(registry);
+            this.failedRows = Counter.builder("automa.export.rows.failed").description("Rows that could not be rendered")
+                .tags(tags).register(registry);
+        }
+
+        public void ibanEncrypted(long nanos) {
+            iban.record(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        public void headerRendered(long nanos, int lineBytes) {
+            header.record(nanos, TimeUnit.NANOSECONDS);
+            bytes.increment(lineBytes);
+        }
+
+        public void bodyRendered(long nanos) {
+            body.record(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        public void row(int lineBytes) {
+            rows.increment();
+            bytes.increment(lineBytes);
+        }
+
+        public void failedRow() {
+            failedRows.increment();
+        }
+    }
+}
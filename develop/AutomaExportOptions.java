@@ -0,0 +1,116 @@
+package it.ivert.kiop.pda.service.csv;
+
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * Optional behaviours of an Automa export, all disabled by default.
+ */
+public class AutomaExportOptions {
+
+    private boolean parallel;
+
+    private String projection;
+
+    private boolean gzip;
+
+    private List<String> columns;
+
+    private String profile;
+
+    private IntConsumer progress = rows -> {
+    };
+
+    public static AutomaExportOptions defaults() {
+        return new AutomaExportOptions();
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * Renders the rows of every page on the shared export pool, capped by {@code application.automa-export.parallelism}.
+     * Rows are still written in criteria order.
+     */
+    public AutomaExportOptions parallel(boolean parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+
+    public String getProjection() {
+        return projection;
+    }
+
+    /**
+     * Reads the PDAs of the given {@code Constants.MANDATO_*} group through {@link AutomaProjectionReader} instead of
+     * mapping the full {@code GenericPdaDTO} graph. Criteria the projection cannot translate keep the regular read path.
+     */
+    public AutomaExportOptions projection(String mandate) {
+        this.projection = mandate;
+        return this;
+    }
+
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    /**
+     * Gzip compresses the spool file of an asynchronous export, see {@link AutomaExportSpool}.
+     */
+    public AutomaExportOptions gzip(boolean gzip) {
+        this.gzip = gzip;
+        return this;
+    }
+
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    /**
+     * Exports only the named columns, by header and in the given order: the other columns, the encrypted IBAN
+     * included, are not evaluated.
+     */
+    public AutomaExportOptions columns(List<String> columns) {
+        this.columns = List.copyOf(columns);
+        return this;
+    }
+
+    public String getProfile() {
+        return profile;
+    }
+
+    /**
+     * Exports only the columns of a saved {@link AutomaColumnProfiles} profile; takes precedence over {@link #columns}.
+     */
+    public AutomaExportOptions profile(String profile) {
+        this.profile = profile;
+        return this;
+    }
+
+    /**
+     * Listener notified with the number of rows written after every page of the export.
+     */
+    public AutomaExportOptions progress(IntConsumer progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    /**
+     * Copy of the options notifying the given listener, leaving this instance untouched.
+     */
+    public AutomaExportOptions withProgress(IntConsumer progress) {
+        AutomaExportOptions copy = new AutomaExportOptions();
+        copy.parallel = parallel;
+        copy.projection = projection;
+        copy.gzip = gzip;
+        copy.columns = columns;
+        copy.profile = profile;
+        copy.progress = progress;
+        return copy;
+    }
+
+    void pageWritten(int rows) {
+        progress.accept(rows);
+    }
+}
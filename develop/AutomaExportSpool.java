@@ -0,0 +1,251 @@
+package it.ivert.kiop.pda.service.csv;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Spools an Automa export to a file through a {@link FileChannel}, optionally gzip compressed, and serves it back as a
+ * {@link Resource}, so Spring MVC answers a {@code Range} request with the requested regions and an interrupted
+ * download resumes where it stopped instead of running the export again. The file is copied to the response through
+ * the servlet output stream, a buffered copy.
+ * <p>
+ * The SHA-256 of the spooled bytes is the {@code ETag} of the download, so {@code If-Range} only resumes the same file,
+ * and is returned as {@code Repr-Digest} and {@code X-Checksum-SHA256} for the client to verify the reassembled file.
+ * <p>
+ * Every download holds the spool file open until its copy ends: a file {@link SpoolFile#retire retired} meanwhile is
+ * deleted once the last download closes it.
+ */
+public final class AutomaExportSpool {
+
+    private static final Logger log = LoggerFactory.getLogger(AutomaExportSpool.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private AutomaExportSpool() {
+    }
+
+    @FunctionalInterface
+    public interface Content {
+        void write(OutputStream outputStream) throws IOException;
+    }
+
+    public static SpoolFile write(Path file, boolean gzip, Content content) throws IOException {
+        MessageDigest digest = sha256();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE);
+             OutputStream outputStream = new DigestOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE), digest)) {
+            if (gzip) {
+                GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream, BUFFER_SIZE);
+                content.write(gzipOutputStream);
+                gzipOutputStream.finish();
+            } else {
+                content.write(outputStream);
+            }
+        }
+
+        return new SpoolFile(file, Files.size(file), HexFormat.of().formatHex(digest.digest()), gzip);
+    }
+
+    /**
+     * Serves the spool file as an attachment. Spring MVC answers a {@code Range} request with {@code 206} and the
+     * requested regions, or {@code 416} when they are not satisfiable. A range of a file with a different
+     * {@code If-Range} tag is answered with the whole file.
+     *
+     * @param filename    download name of the uncompressed export, {@code .gz} is appended for gzip spools.
+     * @param contentType media type of the uncompressed export.
+     */
+    public static ResponseEntity<Resource> serve(SpoolFile spool, String filename, String contentType, HttpHeaders requestHeaders) {
+        String etag = "\"" + spool.checksum() + "\"";
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setETag(etag);
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+        headers.set("Repr-Digest", "sha-256=:" + Base64.getEncoder().encodeToString(HexFormat.of().parseHex(spool.checksum())) + ":");
+        headers.set("X-Checksum-SHA256", spool.checksum());
+        headers.setContentType(spool.gzip() ? MediaType.parseMediaType("application/gzip") : MediaType.parseMediaType(contentType));
+        headers.setContentDisposition(ContentDisposition.attachment().filename(spool.gzip() ? filename + ".gz" : filename).build());
+
+        String ifRange = requestHeaders.getFirst(HttpHeaders.IF_RANGE);
+        if (ifRange != null && !ifRange.equals(etag)) {
+            // Spring does not apply ranges to an InputStreamResource.
+            headers.setContentLength(spool.size());
+            return ResponseEntity.ok().headers(headers).body(new InputStreamResource(() -> new SpoolInputStream(spool)));
+        }
+
+        return ResponseEntity.ok().headers(headers).body(new SpoolResource(spool));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A spooled export, reference counted by the downloads reading it.
+     */
+    public static final class SpoolFile {
+
+        private final Path file;
+
+        private final long size;
+
+        private final String checksum;
+
+        private final boolean gzip;
+
+        private int readers;
+
+        private boolean retired;
+
+        /**
+         * @param checksum hex SHA-256 of the file content.
+         * @param gzip     whether the content is gzip compressed.
+         */
+        private SpoolFile(Path file, long size, String checksum, boolean gzip) {
+            this.file = file;
+            this.size = size;
+            this.checksum = checksum;
+            this.gzip = gzip;
+        }
+
+        public Path file() {
+            return file;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public String checksum() {
+            return checksum;
+        }
+
+        public boolean gzip() {
+            return gzip;
+        }
+
+        private synchronized boolean acquire() {
+            if (retired) {
+                return false;
+            }
+            readers++;
+            return true;
+        }
+
+        /**
+         * Removes the spool from use: its file is deleted as soon as no download holds it open.
+         */
+        public synchronized void retire() {
+            retired = true;
+            if (readers == 0) {
+                this.delete();
+            }
+        }
+
+        private synchronized void release() {
+            readers--;
+            if (retired && readers == 0) {
+                this.delete();
+            }
+        }
+
+        private void delete() {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.warn("Unable to delete automa export spool file {}", file, e);
+            }
+        }
+    }
+
+    private static final class SpoolResource extends FileSystemResource {
+
+        private final SpoolFile spool;
+
+        private SpoolResource(SpoolFile spool) {
+            super(spool.file());
+            this.spool = spool;
+        }
+
+        @Override
+        public long contentLength() {
+            return spool.size();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new SpoolInputStream(spool);
+        }
+    }
+
+    /**
+     * Holds the spool file open until closed.
+     */
+    private static final class SpoolInputStream extends FilterInputStream {
+
+        private final SpoolFile spool;
+
+        private boolean closed;
+
+        private SpoolInputStream(SpoolFile spool) throws IOException {
+            super(open(spool));
+            this.spool = spool;
+        }
+
+        private static InputStream open(SpoolFile spool) throws IOException {
+            if (!spool.acquire()) {
+                throw new NoSuchFileException(spool.file().toString());
+            }
+
+            try {
+                return Files.newInputStream(spool.file());
+            } catch (IOException e) {
+                spool.release();
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                spool.release();
+            }
+        }
+    }
+}
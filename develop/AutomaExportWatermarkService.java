@@ -0,0 +1,170 @@
+package it.ivert.kiop.pda.service.csv;
+
+import it.ivert.kiop.shared.service.criteria.GenericPdaCriteria;
+import it.ivert.kiop.shared.web.rest.errors.BadRequestAlertException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+/**
+ * Watermarks of the incremental Automa exports, one for each consumer and mandate. A watermark is the modification
+ * instant up to which the consumer has already received the PDAs of the mandate. Watermarks trail the current
+ * instant by {@code application.automa-export.delta.safety-lag}, so a PDA stamped by a transaction that commits after
+ * the export has read its pages is still picked up by the next run.
+ * <p>
+ * An export {@link #claim claims} the watermark before writing anything, so a concurrent export of the same consumer
+ * and mandate is rejected before its response starts. A claim left by a crashed export expires after
+ * {@code application.automa-export.delta.claim-timeout}.
+ * <p>
+ * Backed by the table:
+ * <pre>
+ * create table automa_export_watermark (
+ *     consumer      varchar(100) not null,
+ *     mandate       varchar(100) not null,
+ *     watermark     timestamp,
+ *     claimed_until timestamp,
+ *     primary key (consumer, mandate)
+ * );
+ * </pre>
+ */
+@Service
+public class AutomaExportWatermarkService {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final AutomaReferenceCache referenceCache;
+
+    private final Duration safetyLag;
+
+    private final Duration claimTimeout;
+
+    public AutomaExportWatermarkService(JdbcTemplate jdbcTemplate, AutomaReferenceCache referenceCache,
+                                        @Value("${application.automa-export.delta.safety-lag:PT5M}") Duration safetyLag,
+                                        @Value("${application.automa-export.delta.claim-timeout:PT1H}") Duration claimTimeout) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.referenceCache = referenceCache;
+        this.safetyLag = safetyLag;
+        this.claimTimeout = claimTimeout;
+    }
+
+    /**
+     * @return the instant a delta export starting now may advance the watermark to.
+     */
+    public Instant upperBound() {
+        return Instant.now().minus(safetyLag);
+    }
+
+    /**
+     * Restricts a copy of the criteria to the group of the mandate, so the watermark of a mandate only ever covers its
+     * own PDAs.
+     *
+     * @throws BadRequestAlertException when the mandate is not a known group or the criteria select another group.
+     */
+    public GenericPdaCriteria scope(String mandate, GenericPdaCriteria genericPdaCriteria) {
+        Long groupId = referenceCache.groupId(mandate);
+
+        if (groupId == null) {
+            throw new BadRequestAlertException("Not managed group in automa export csv.", "AutomaExportCSV", "notManagedGroup");
+        }
+
+        GenericPdaCriteria scoped = genericPdaCriteria.copy();
+        var group = scoped.groupId();
+
+        if ((group.getEquals() != null && !group.getEquals().equals(groupId))
+            || (group.getIn() != null && !group.getIn().contains(groupId))) {
+            throw new BadRequestAlertException("Criteria group does not match the watermark mandate.", "AutomaExportCSV", "mandateMismatch");
+        }
+
+        group.setEquals(groupId);
+        return scoped;
+    }
+
+    /**
+     * @return the current watermark, {@code null} when the consumer has never exported the mandate.
+     */
+    public Instant get(String consumer, String mandate) {
+        List<Timestamp> watermarks = jdbcTemplate.queryForList(
+            "select watermark from automa_export_watermark where consumer = ? and mandate = ?", Timestamp.class, consumer, mandate);
+        return watermarks.isEmpty() || watermarks.get(0) == null ? null : watermarks.get(0).toInstant();
+    }
+
+    /**
+     * Claims the watermark of the consumer and mandate for one export, provided it is still {@code expected} and no
+     * other export holds an unexpired claim on it.
+     *
+     * @throws BadRequestAlertException when the watermark moved or is claimed by a concurrent export.
+     */
+    public Claim claim(String consumer, String mandate, Instant expected) {
+        Timestamp now = Timestamp.from(Instant.now());
+        Timestamp claimedUntil = Timestamp.from(Instant.now().plus(claimTimeout).truncatedTo(ChronoUnit.MILLIS));
+        boolean claimed;
+
+        if (expected == null) {
+            try {
+                claimed = jdbcTemplate.update(
+                    "insert into automa_export_watermark (consumer, mandate, watermark, claimed_until) values (?, ?, null, ?)",
+                    consumer, mandate, claimedUntil) == 1;
+            } catch (DuplicateKeyException e) {
+                claimed = jdbcTemplate.update("update automa_export_watermark set claimed_until = ? where consumer = ? and mandate = ?"
+                    + " and watermark is null and (claimed_until is null or claimed_until < ?)", claimedUntil, consumer, mandate, now) == 1;
+            }
+        } else {
+            claimed = jdbcTemplate.update("update automa_export_watermark set claimed_until = ? where consumer = ? and mandate = ?"
+                    + " and watermark = ? and (claimed_until is null or claimed_until < ?)",
+                claimedUntil, consumer, mandate, Timestamp.from(expected), now) == 1;
+        }
+
+        if (!claimed) {
+            throw new BadRequestAlertException("Automa export watermark claimed by a concurrent export.", "AutomaExportCSV", "watermarkConflict");
+        }
+
+        return new Claim(consumer, mandate, claimedUntil);
+    }
+
+    /**
+     * Moves the claimed watermark to {@code watermark} and releases the claim.
+     *
+     * @throws BadRequestAlertException when the claim expired and was taken over by another export.
+     */
+    public void advance(Claim claim, Instant watermark) {
+        boolean advanced = jdbcTemplate.update("update automa_export_watermark set watermark = ?, claimed_until = null"
+                + " where consumer = ? and mandate = ? and claimed_until = ?",
+            Timestamp.from(watermark), claim.consumer(), claim.mandate(), claim.claimedUntil()) == 1;
+
+        if (!advanced) {
+            throw new BadRequestAlertException("Automa export watermark claim expired.", "AutomaExportCSV", "watermarkConflict");
+        }
+    }
+
+    /**
+     * Releases the claim of a failed export, leaving the watermark where it was.
+     */
+    public void release(Claim claim) {
+        jdbcTemplate.update("update automa_export_watermark set claimed_until = null where consumer = ? and mandate = ? and claimed_until = ?",
+            claim.consumer(), claim.mandate(), claim.claimedUntil());
+    }
+
+    /**
+     * Moves the watermark back so the next incremental export resends the PDAs modified after it;
+     * a {@code null} watermark makes the next export a full one.
+     */
+    public void rewind(String consumer, String mandate, Instant watermark) {
+        if (watermark == null) {
+            jdbcTemplate.update("delete from automa_export_watermark where consumer = ? and mandate = ?", consumer, mandate);
+        } else if (jdbcTemplate.update("update automa_export_watermark set watermark = ? where consumer = ? and mandate = ?",
+            Timestamp.from(watermark), consumer, mandate) == 0) {
+            jdbcTemplate.update("insert into automa_export_watermark (consumer, mandate, watermark) values (?, ?, ?)",
+                consumer, mandate, Timestamp.from(watermark));
+        }
+    }
+
+    public record Claim(String consumer, String mandate, Timestamp claimedUntil) {
+    }
+}
@@ -0,0 +1,80 @@
+package it.ivert.kiop.pda.service.csv;
+
+import it.ivert.kiop.pda.service.PagamentoService;
+import it.ivert.kiop.shared.service.dto.PagamentoDTO;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encrypts the IBANs of the Automa export a page at a time, backed by a bounded LRU cache keyed by
+ * payment id and modification date so repeated exports of the same PDAs do not encrypt again. Payments without id or
+ * modification date are never cached, since a changed IBAN would keep the same key. There is no bulk encryption:
+ * every payment missing from the cache is still encrypted by its own {@link PagamentoService} call.
+ */
+@Component
+public class AutomaIbanEncryptor {
+
+    private static final int CACHE_SIZE = 10_000;
+
+    private final PagamentoService pagamentoService;
+
+    private final Map<CacheKey, String> cache = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CacheKey, String> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    public AutomaIbanEncryptor(PagamentoService pagamentoService) {
+        this.pagamentoService = pagamentoService;
+    }
+
+    /**
+     * Encrypts the IBAN of every distinct payment of the page, returning them by payment id. Payments without id are
+     * skipped.
+     */
+    public Map<Long, String> encryptAll(Collection<PagamentoDTO> payments) {
+        Map<Long, String> ibans = new HashMap<>();
+
+        for (PagamentoDTO payment : payments) {
+            if (payment != null && payment.getId() != null && !ibans.containsKey(payment.getId())) {
+                ibans.put(payment.getId(), this.encrypt(payment));
+            }
+        }
+
+        return ibans;
+    }
+
+    public String encrypt(PagamentoDTO payment) {
+        if (payment.getId() == null || payment.getModifiedDate() == null) {
+            return pagamentoService.getBankIbanEncrypt(payment);
+        }
+
+        CacheKey key = new CacheKey(payment.getId(), payment.getModifiedDate());
+        String iban;
+
+        synchronized (cache) {
+            iban = cache.get(key);
+        }
+
+        if (iban == null) {
+            iban = pagamentoService.getBankIbanEncrypt(payment);
+
+            if (iban != null) {
+                synchronized (cache) {
+                    cache.put(key, iban);
+                }
+            }
+        }
+
+        return iban;
+    }
+
+    private record CacheKey(Long id, Instant version) {
+    }
+}
@@ -0,0 +1,408 @@
+package it.ivert.kiop.pda.service.csv;
+
+import it.ivert.kiop.pda.config.Constants;
+import it.ivert.kiop.pda.domain.GenericPda;
+import it.ivert.kiop.pda.service.GenericPdaService;
+import it.ivert.kiop.shared.service.criteria.GenericPdaCriteria;
+import it.ivert.kiop.shared.service.dto.*;
+import it.ivert.kiop.shared.web.rest.errors.BadRequestAlertException;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Tuple;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.From;
+import jakarta.persistence.criteria.JoinType;
+import jakarta.persistence.criteria.Path;
+import jakarta.persistence.criteria.Root;
+import jakarta.persistence.criteria.Selection;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.security.core.Authentication;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import tech.jhipster.service.filter.LongFilter;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Export-specific read path of the Automa csv: instead of mapping the full {@link GenericPdaDTO} graph through
+ * {@code findByCriteria}, a single tuple query selects only the attributes the mandate layout prints, left joins only
+ * the associations they come from and streams the flat tuples into shallow DTOs. Reference entities are read as ids and
+ * resolved from {@link AutomaReferenceCache}.
+ * <p>
+ * The query is built on the {@link Specification} {@code findByCriteria} applies to the {@code automa} view, so the
+ * criteria filters and the authorization of the user scope and the authenticated principal are the same of the DTO read
+ * path. It runs inside a read-only transaction with {@code application.automa-export.projection.fetch-size}, so
+ * PostgreSQL reads through a cursor instead of buffering the whole result. On MySQL either set the fetch size to
+ * {@code -2147483648} (row streaming) or keep a positive one with {@code useCursorFetch=true} in the jdbc url.
+ */
+@Component
+public class AutomaProjectionReader {
+
+    private static final String ENEL = Constants.MANDATO_ENEL_ENERGIA;
+
+    private static final String FASTWEB = Constants.MANDATO_FASTWEB;
+
+    private static final List<Binding> BINDINGS = List.of(
+        new Binding(null, "id", Set.of(ENEL, FASTWEB), (row, value) -> row.pda.setId((Long) value)),
+        new Binding(null, "type.id", Set.of(ENEL, FASTWEB), (row, value) -> row.typeId = (Long) value),
+        new Binding(null, "pdaType", Set.of(FASTWEB), (row, value) -> row.pda.setPdaType((Integer) value)),
+        new Binding(null, "createDate", Set.of(FASTWEB), (row, value) -> row.pda.setCreateDate((Instant) value)),
+        new Binding(null, "codeAccount", Set.of(ENEL), (row, value) -> row.pda.setCodeAccount((String) value)),
+        new Binding("ownerId", "screenName", Set.of(ENEL), (row, value) -> row.owner().setScreenName((String) value)),
+        new Binding(null, "pod", Set.of(ENEL), (row, value) -> row.pda.setPod((String) value)),
+        new Binding(null, "tipoPdaEnergia", Set.of(ENEL), (row, value) -> row.pda.setTipoPdaEnergia((String) value)),
+        new Binding(null, "indirizzoCap", Set.of(ENEL, FASTWEB), (row, value) -> row.pda.setIndirizzoCap((String) value)),
+        new Binding(null, "indirizzoCittaTxt", Set.of(ENEL, FASTWEB), (row, value) -> row.pda.setIndirizzoCittaTxt((String) value)),
+        new Binding(null, "indirizzoProvinciaTxt", Set.of(FASTWEB), (row, value) -> row.pda.setIndirizzoProvinciaTxt((String) value)),
+        new Binding(null, "indirizzoVia", Set.of(ENEL, FASTWEB), (row, value) -> row.pda.setIndirizzoVia((String) value)),
+        new Binding(null, "indirizzoNum", Set.of(ENEL, FASTWEB), (row, value) -> row.pda.setIndirizzoNum((String) value)),
+        new Binding(null, "indirizzoScala", Set.of(ENEL, FASTWEB), (row, value) -> row.pda.setIndirizzoScala((String) value)),
+        new Binding(null, "indirizzoPiano", Set.of(ENEL, FASTWEB), (row, value) -> row.pda.setIndirizzoPiano((String) value)),
+        new Binding(null, "indirizzoInterno", Set.of(ENEL, FASTWEB), (row, value) -> row.pda.setIndirizzoInterno((String) value)),
+        new Binding(null, "toponimo.id", Set.of(ENEL, FASTWEB), (row, value) -> row.toponimoId = (Long) value),
+        new Binding(null, "indirizzoCittaSpedizioneTxt", Set.of(FASTWEB),
+            (row, value) -> row.pda.setIndirizzoCittaSpedizioneTxt((String) value)),
+        new Binding(null, "indirizzoProvinciaSpedizioneTxt", Set.of(ENEL, FASTWEB),
+            (row, value) -> row.pda.setIndirizzoProvinciaSpedizioneTxt((String) value)),
+        new Binding(null, "indirizzoViaSpedizione", Set.of(FASTWEB), (row, value) -> row.pda.setIndirizzoViaSpedizione((String) value)),
+        new Binding(null, "indirizzoNumSpedizione", Set.of(FASTWEB), (row, value) -> row.pda.setIndirizzoNumSpedizione((String) value)),
+        new Binding(null, "indirizzoCapSpedizione", Set.of(FASTWEB), (row, value) -> row.pda.setIndirizzoCapSpedizione((String) value)),
+        new Binding(null, "toponimoIndirizzoSpedizione.id", Set.of(FASTWEB), (row, value) -> row.toponimoSpedizioneId = (Long) value),
+        new Binding(null, "telFisso", Set.of(ENEL, FASTWEB), (row, value) -> row.pda.setTelFisso((String) value)),
+        new Binding(null, "lnanp", Set.of(FASTWEB), (row, value) -> row.pda.setLnanp((String) value)),
+        new Binding(null, "npMigrationCodeVoce", Set.of(FASTWEB), (row, value) -> row.pda.setNpMigrationCodeVoce((String) value)),
+        new Binding(null, "gestoreFisso", Set.of(FASTWEB), (row, value) -> row.pda.setGestoreFisso((String) value)),
+        new Binding(null, "npMigrationCodeDati", Set.of(FASTWEB), (row, value) -> row.pda.setNpMigrationCodeDati((String) value)),
+        new Binding(null, "gestoreDati", Set.of(FASTWEB), (row, value) -> row.pda.setGestoreDati((String) value)),
+        new Binding("customer", "id", Set.of(ENEL, FASTWEB), (row, value) -> row.customer().setId((Long) value)),
+        new Binding("customer", "formaGiuridica", Set.of(ENEL, FASTWEB), (row, value) -> row.customer().setFormaGiuridica((String) value)),
+        new Binding("customer", "nome", Set.of(ENEL, FASTWEB), (row, value) -> row.customer().setNome((String) value)),
+        new Binding("customer", "cognome", Set.of(ENEL, FASTWEB), (row, value) -> row.customer().setCognome((String) value)),
+        new Binding("customer", "codFiscale", Set.of(ENEL, FASTWEB), (row, value) -> row.customer().setCodFiscale((String) value)),
+        new Binding("customer", "partitaIva", Set.of(ENEL, FASTWEB), (row, value) -> row.customer().setPartitaIva((String) value)),
+        new Binding("customer", "cellulare1", Set.of(ENEL), (row, value) -> row.customer().setCellulare1((String) value)),
+        new Binding("customer", "email", Set.of(ENEL, FASTWEB), (row, value) -> row.customer().setEmail((String) value)),
+        new Binding("customer", "emailPec", Set.of(ENEL), (row, value) -> row.customer().setEmailPec((String) value)),
+        new Binding("customer", "ragSociale", Set.of(FASTWEB), (row, value) -> row.customer().setRagSociale((String) value)),
+        new Binding("customer", "sesso", Set.of(FASTWEB), (row, value) -> row.customer().setSesso((String) value)),
+        new Binding("customer", "nascitaData", Set.of(FASTWEB), (row, value) -> row.customer().setNascitaData((LocalDate) value)),
+        new Binding("customer", "nascitaNazioneTxt", Set.of(FASTWEB), (row, value) -> row.customer().setNascitaNazioneTxt((String) value)),
+        new Binding("customer", "nascitaLuogoTxt", Set.of(FASTWEB), (row, value) -> row.customer().setNascitaLuogoTxt((String) value)),
+        new Binding("customer", "nascitaProvinciaTxt", Set.of(FASTWEB),
+            (row, value) -> row.customer().setNascitaProvinciaTxt((String) value)),
+        new Binding("customer", "contattoCellulare", Set.of(FASTWEB), (row, value) -> row.customer().setContattoCellulare((String) value)),
+        new Binding("customer", "contattoTelefono", Set.of(FASTWEB), (row, value) -> row.customer().setContattoTelefono((String) value)),
+        new Binding("customer", "indirizzoCittaTxt", Set.of(FASTWEB), (row, value) -> row.customer().setIndirizzoCittaTxt((String) value)),
+        new Binding("customer", "indirizzoProvinciaTxt", Set.of(FASTWEB),
+            (row, value) -> row.customer().setIndirizzoProvinciaTxt((String) value)),
+        new Binding("customer", "indirizzoVia", Set.of(FASTWEB), (row, value) -> row.customer().setIndirizzoVia((String) value)),
+        new Binding("customer", "indirizzoNum", Set.of(FASTWEB), (row, value) -> row.customer().setIndirizzoNum((String) value)),
+        new Binding("customer", "indirizzoCap", Set.of(FASTWEB), (row, value) -> row.customer().setIndirizzoCap((String) value)),
+        new Binding("customer", "indirizzoToponimo.id", Set.of(FASTWEB), (row, value) -> row.customerToponimoId = (Long) value),
+        new Binding("customerDoc", "id", Set.of(ENEL, FASTWEB), (row, value) -> row.document().setId((Long) value)),
+        new Binding("customerDoc", "num", Set.of(ENEL, FASTWEB), (row, value) -> row.document().setNum((String) value)),
+        new Binding("customerDoc", "dataRilascio", Set.of(ENEL, FASTWEB), (row, value) -> row.document().setDataRilascio((LocalDate) value)),
+        new Binding("customerDoc", "nazionalitaTxt", Set.of(FASTWEB), (row, value) -> row.document().setNazionalitaTxt((String) value)),
+        new Binding("customerDoc", "cittadinanza", Set.of(FASTWEB), (row, value) -> row.document().setCittadinanza((String) value)),
+        new Binding("customerDoc", "luogoRilascioTxt", Set.of(FASTWEB), (row, value) -> row.document().setLuogoRilascioTxt((String) value)),
+        new Binding("customerDoc", "provRilascioTxt", Set.of(FASTWEB), (row, value) -> row.document().setProvRilascioTxt((String) value)),
+        new Binding("customerDoc", "tipoDocumento.id", Set.of(ENEL, FASTWEB), (row, value) -> row.tipoDocumentoId = (Long) value),
+        new Binding("customerDoc", "enteRilascioDocumento.id", Set.of(ENEL, FASTWEB), (row, value) -> row.enteRilascioId = (Long) value),
+        new Binding("backOffice", "account", Set.of(FASTWEB), (row, value) -> row.backOffice().setAccount((String) value)),
+        new Binding("offer", "name", Set.of(FASTWEB), (row, value) -> row.offer().setName((String) value)),
+        new Binding("pagamento", "id", Set.of(FASTWEB), (row, value) -> row.payment().setId((Long) value)),
+        new Binding("pagamento", "modifiedDate", Set.of(FASTWEB), (row, value) -> row.payment().setModifiedDate((Instant) value)),
+        new Binding("pagamento", "paymentType", Set.of(FASTWEB), (row, value) -> row.payment().setPaymentType((String) value)),
+        new Binding("pagamento", "bankCustomerType", Set.of(FASTWEB), (row, value) -> row.payment().setBankCustomerType((Integer) value)),
+        new Binding("pagamento", "bankIban", Set.of(FASTWEB), (row, value) -> row.payment().setBankIban((String) value)),
+        new Binding("pagamento", "ibanCrypto", Set.of(FASTWEB), (row, value) -> row.payment().setIbanCrypto((Boolean) value))
+    );
+
+    private final EntityManager entityManager;
+
+    private final GenericPdaService genericPdaService;
+
+    private final AutomaExportMetrics metrics;
+
+    private final AutomaCsvSchemas schemas;
+
+    private final AutomaReferenceCache referenceCache;
+
+    private final boolean enabled;
+
+    private final int fetchSize;
+
+    public AutomaProjectionReader(EntityManager entityManager, GenericPdaService genericPdaService, AutomaCsvSchemas schemas,
+                                  AutomaReferenceCache referenceCache, AutomaExportMetrics metrics,
+                                  @Value("${application.automa-export.projection.enabled:false}") boolean enabled,
+                                  @Value("${application.automa-export.projection.fetch-size:1000}") int fetchSize) {
+        this.entityManager = entityManager;
+        this.genericPdaService = genericPdaService;
+        this.schemas = schemas;
+        this.referenceCache = referenceCache;
+        this.metrics = metrics;
+        this.enabled = enabled;
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Whether the projection can read the criteria: they must be restricted to the group of the mandate, so every PDA
+     * read has the layout of the mandate.
+     *
+     * @throws BadRequestAlertException when the mandate is not a known group.
+     */
+    public boolean supports(String mandate, GenericPdaCriteria genericPdaCriteria) {
+        if (!enabled) {
+            return false;
+        }
+
+        Long groupId = this.groupId(mandate);
+        LongFilter group = genericPdaCriteria.getGroupId();
+
+        return group != null
+            && (groupId.equals(group.getEquals()) || (group.getIn() != null && List.of(groupId).equals(group.getIn())));
+    }
+
+    /**
+     * Streams the PDAs matching the criteria ordered by id, handing them over in pages. The criteria must be
+     * {@link #supports supported}.
+     */
+    @Transactional(readOnly = true)
+    public void read(String mandate, GenericPdaCriteria genericPdaCriteria, List<UserLiferayDTO> userLiferayDTO, Authentication authentication,
+                     int pageSize, PageConsumer consumer) throws IOException {
+        List<Binding> bindings = BINDINGS.stream()
+            .filter(binding -> binding.mandates().stream().anyMatch(bindingMandate -> bindingMandate.equalsIgnoreCase(mandate)))
+            .toList();
+        Specification<GenericPda> specification = genericPdaService.specification("automa", genericPdaCriteria, userLiferayDTO, authentication);
+
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Tuple> query = builder.createTupleQuery();
+        Root<GenericPda> root = query.from(GenericPda.class);
+        Map<String, From<?, ?>> joins = new HashMap<>();
+        List<Selection<?>> selections = new ArrayList<>(bindings.size());
+
+        for (Binding binding : bindings) {
+            From<?, ?> from = binding.association() == null ? root
+                : joins.computeIfAbsent(binding.association(), association -> root.join(association, JoinType.LEFT));
+            selections.add(path(from, binding.attribute()));
+        }
+
+        query.multiselect(selections)
+            .where(specification.toPredicate(root, query, builder))
+            .orderBy(builder.asc(root.get("id")));
+
+        long start = System.nanoTime();
+        try (Stream<Tuple> tuples = entityManager.createQuery(query)
+            .setHint(HibernateHints.HINT_FETCH_SIZE, fetchSize)
+            .setHint(HibernateHints.HINT_READ_ONLY, true)
+            .getResultStream()) {
+            List<Row> page = new ArrayList<>(pageSize);
+            Iterable<Tuple> iterable = tuples::iterator;
+
+            for (Tuple tuple : iterable) {
+                Row row = new Row();
+                for (int i = 0; i < bindings.size(); i++) {
+                    bindings.get(i).setter().set(row, tuple.get(i));
+                }
+
+                page.add(row);
+                if (page.size() == pageSize) {
+                    metrics.query().record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    this.accept(mandate, page, consumer);
+                    page = new ArrayList<>(pageSize);
+                    start = System.nanoTime();
+                }
+            }
+
+            if (!page.isEmpty()) {
+                metrics.query().record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                this.accept(mandate, page, consumer);
+            }
+        }
+    }
+
+    private static Path<?> path(From<?, ?> from, String attribute) {
+        Path<?> path = from;
+        for (String name : attribute.split("\\.")) {
+            path = path.get(name);
+        }
+        return path;
+    }
+
+    private Long groupId(String mandate) {
+        Long groupId = referenceCache.groupId(mandate);
+
+        if (groupId == null) {
+            throw new BadRequestAlertException("Not managed group in automa export csv.", "AutomaExportCSV", "notManagedGroup");
+        }
+
+        return groupId;
+    }
+
+    /**
+     * Resolves the reference entities of the page from {@link AutomaReferenceCache}, one bulk lookup per kind, and hands
+     * the DTOs over with their layouts.
+     */
+    private void accept(String mandate, List<Row> rows, PageConsumer consumer) throws IOException {
+        Map<AutomaReferenceCache.Kind, Map<Long, Object>> references = new EnumMap<>(AutomaReferenceCache.Kind.class);
+        references.put(AutomaReferenceCache.Kind.TYPE, this.lookup(AutomaReferenceCache.Kind.TYPE, rows, row -> row.typeId));
+        references.put(AutomaReferenceCache.Kind.TOPONIMO, this.lookup(AutomaReferenceCache.Kind.TOPONIMO, rows,
+            row -> row.toponimoId, row -> row.toponimoSpedizioneId, row -> row.customerToponimoId));
+        references.put(AutomaReferenceCache.Kind.TIPO_DOCUMENTO, this.lookup(AutomaReferenceCache.Kind.TIPO_DOCUMENTO, rows,
+            row -> row.tipoDocumentoId));
+        references.put(AutomaReferenceCache.Kind.ENTE_RILASCIO_DOCUMENTO, this.lookup(AutomaReferenceCache.Kind.ENTE_RILASCIO_DOCUMENTO, rows,
+            row -> row.enteRilascioId));
+
+        List<GenericPdaDTO> page = new ArrayList<>(rows.size());
+        for (Row row : rows) {
+            page.add(row.build(references));
+        }
+
+        consumer.accept(page, this.schemasOf(mandate, page));
+    }
+
+    @SafeVarargs
+    private Map<Long, Object> lookup(AutomaReferenceCache.Kind kind, List<Row> rows, Function<Row, Long>... ids) {
+        Set<Long> distinct = new HashSet<>();
+
+        for (Row row : rows) {
+            for (Function<Row, Long> id : ids) {
+                Long value = id.apply(row);
+                if (value != null) {
+                    distinct.add(value);
+                }
+            }
+        }
+
+        return distinct.isEmpty() ? Map.of() : referenceCache.getAll(kind, distinct);
+    }
+
+    private AutomaCsvSchema[] schemasOf(String mandate, List<GenericPdaDTO> page) {
+        AutomaCsvSchema[] rowSchemas = new AutomaCsvSchema[page.size()];
+        for (int i = 0; i < rowSchemas.length; i++) {
+            rowSchemas[i] = schemas.get(mandate, page.get(i).getType() != null ? page.get(i).getType().getId() : null);
+        }
+        return rowSchemas;
+    }
+
+    @FunctionalInterface
+    public interface PageConsumer {
+        void accept(List<GenericPdaDTO> genericPdaDTOS, AutomaCsvSchema[] rowSchemas) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface Setter {
+        void set(Row row, Object value);
+    }
+
+    /**
+     * @param association the association of {@link GenericPda} left joined to read the attribute, {@code null} for the PDA.
+     * @param attribute   the attribute path, the id of a reference entity is read as {@code reference.id} without a join.
+     */
+    private record Binding(String association, String attribute, Set<String> mandates, Setter setter) {
+    }
+
+    /**
+     * Shallow DTO graph of one tuple: nested DTOs are created only when one of their columns is read and kept only
+     * when their id (or, for lookups, any value) is present. Reference entities are only ids until {@link #build}.
+     */
+    private static final class Row {
+
+        private final GenericPdaDTO pda = new GenericPdaDTO();
+
+        private Long typeId;
+
+        private Long toponimoId;
+
+        private Long toponimoSpedizioneId;
+
+        private Long customerToponimoId;
+
+        private Long tipoDocumentoId;
+
+        private Long enteRilascioId;
+
+        private UserLiferayDTO owner;
+
+        private CustomerDTO customer;
+
+        private DocumentoDTO document;
+
+        private BackOfficeDTO backOffice;
+
+        private OfferDTO offer;
+
+        private PagamentoDTO payment;
+
+        private UserLiferayDTO owner() {
+            return owner != null ? owner : (owner = new UserLiferayDTO());
+        }
+
+        private CustomerDTO customer() {
+            return customer != null ? customer : (customer = new CustomerDTO());
+        }
+
+        private DocumentoDTO document() {
+            return document != null ? document : (document = new DocumentoDTO());
+        }
+
+        private BackOfficeDTO backOffice() {
+            return backOffice != null ? backOffice : (backOffice = new BackOfficeDTO());
+        }
+
+        private OfferDTO offer() {
+            return offer != null ? offer : (offer = new OfferDTO());
+        }
+
+        private PagamentoDTO payment() {
+            return payment != null ? payment : (payment = new PagamentoDTO());
+        }
+
+        /**
+         * @param references the cached reference DTOs of the page by kind and id, shared by every row referencing them.
+         */
+        private GenericPdaDTO build(Map<AutomaReferenceCache.Kind, Map<Long, Object>> references) {
+            Map<Long, Object> toponimi = references.get(AutomaReferenceCache.Kind.TOPONIMO);
+
+            pda.setType((TypeDTO) reference(references.get(AutomaReferenceCache.Kind.TYPE), typeId));
+            pda.setOwnerId(owner != null && owner.getScreenName() != null ? owner : null);
+            pda.setToponimo((ToponimoDTO) reference(toponimi, toponimoId));
+            pda.setToponimoIndirizzoSpedizione((ToponimoDTO) reference(toponimi, toponimoSpedizioneId));
+            pda.setBackOffice(backOffice != null && backOffice.getAccount() != null ? backOffice : null);
+            pda.setOffer(offer != null && offer.getName() != null ? offer : null);
+            pda.setPagamento(payment != null && payment.getId() != null ? payment : null);
+
+            if (customer != null && customer.getId() != null) {
+                customer.setIndirizzoToponimo((ToponimoDTO) reference(toponimi, customerToponimoId));
+                pda.setCustomer(customer);
+            }
+
+            if (document != null && document.getId() != null) {
+                document.setTipoDocumento((TipoDocumentoDTO) reference(references.get(AutomaReferenceCache.Kind.TIPO_DOCUMENTO), tipoDocumentoId));
+                document.setEnteRilascioDocumento(
+                    (EnteRilascioDocumentoDTO) reference(references.get(AutomaReferenceCache.Kind.ENTE_RILASCIO_DOCUMENTO), enteRilascioId));
+                pda.setCustomerDoc(document);
+            }
+
+            return pda;
+        }
+
+        private static Object reference(Map<Long, Object> references, Long id) {
+            return id != null ? references.get(id) : null;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package it.ivert.kiop.pda.service.csv;
+
+import it.ivert.kiop.pda.service.GenericPdaService;
+import it.ivert.kiop.shared.service.dto.EnteRilascioDocumentoDTO;
+import it.ivert.kiop.shared.service.dto.TipoDocumentoDTO;
+import it.ivert.kiop.shared.service.dto.ToponimoDTO;
+import it.ivert.kiop.shared.service.dto.TypeDTO;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read-mostly cache of the reference entities printed by the Automa layouts, shared by all exports. Rows read through
+ * {@link AutomaProjectionReader} carry only the ids of these entities and share the cached DTO instances, which are
+ * loaded in bulk, one query per kind and page, for the ids not cached yet.
+ * <p>
+ * Entries expire after {@code application.automa-export.reference-cache.ttl} and are pruned every
+ * {@code application.automa-export.reference-cache.prune-interval}. Every kind holds at most
+ * {@code application.automa-export.reference-cache.max-entries} entries: once full, ids not cached yet are loaded for
+ * the page but not cached.
+ * <p>
+ * The cache is only partly invalidated: a changed reference entity can be printed stale for up to the ttl. No service
+ * publishes {@link ReferenceChanged} yet, it is only the hook for the services of the reference entities to evict an
+ * entry straight away. The {@link GenericPdaService#findByCriteria} read path does not go through the cache. Hits and
+ * misses are counted by {@link AutomaExportMetrics#referenceLookup}.
+ */
+@Component
+public class AutomaReferenceCache {
+
+    public enum Kind {
+        TOPONIMO("select id, name from toponimo where id in (:ids)", (rs, rowNum) -> {
+            ToponimoDTO toponimo = new ToponimoDTO();
+            toponimo.setId(rs.getLong("id"));
+            toponimo.setName(rs.getString("name"));
+            return toponimo;
+        }),
+        TIPO_DOCUMENTO("select id, name, description from tipo_documento where id in (:ids)", (rs, rowNum) -> {
+            TipoDocumentoDTO tipoDocumento = new TipoDocumentoDTO();
+            tipoDocumento.setId(rs.getLong("id"));
+            tipoDocumento.setName(rs.getString("name"));
+            tipoDocumento.setDescription(rs.getString("description"));
+            return tipoDocumento;
+        }),
+        ENTE_RILASCIO_DOCUMENTO("select id, name from ente_rilascio_documento where id in (:ids)", (rs, rowNum) -> {
+            EnteRilascioDocumentoDTO enteRilascio = new EnteRilascioDocumentoDTO();
+            enteRilascio.setId(rs.getLong("id"));
+            enteRilascio.setName(rs.getString("name"));
+            return enteRilascio;
+        }),
+        TYPE("select id, name from type where id in (:ids)", (rs, rowNum) -> {
+            TypeDTO type = new TypeDTO();
+            type.setId(rs.getLong("id"));
+            type.setName(rs.getString("name"));
+            return type;
+        });
+
+        private final String sql;
+
+        private final RowMapper<Object> mapper;
+
+        Kind(String sql, RowMapper<Object> mapper) {
+            this.sql = sql;
+            this.mapper = mapper;
+        }
+    }
+
+    /**
+     * Published when a reference entity is changed or deleted; a {@code null} id evicts every entry of the kind.
+     */
+    public record ReferenceChanged(Kind kind, Long id) {
+    }
+
+    private static final String GROUP_SQL = "select id from group_liferay where lower(group_key) = :groupKey";
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+
+    private final AutomaExportMetrics metrics;
+
+    private final Duration ttl;
+
+    private final int maxEntries;
+
+    private final Map<Kind, Map<Long, Entry<Object>>> entries = new EnumMap<>(Kind.class);
+
+    private final Map<String, Entry<Long>> groups = new ConcurrentHashMap<>();
+
+    public AutomaReferenceCache(NamedParameterJdbcTemplate jdbcTemplate, AutomaExportMetrics metrics,
+                                @Value("${application.automa-export.reference-cache.ttl:30m}") Duration ttl,
+                                @Value("${application.automa-export.reference-cache.max-entries:50000}") int maxEntries) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.metrics = metrics;
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+
+        for (Kind kind : Kind.values()) {
+            entries.put(kind, new ConcurrentHashMap<>());
+        }
+    }
+
+    /**
+     * @return the cached DTOs of the ids, loading the missing ones with a single query. Ids that no longer exist are
+     * left out of the result.
+     */
+    public Map<Long, Object> getAll(Kind kind, Collection<Long> ids) {
+        Map<Long, Entry<Object>> cached = entries.get(kind);
+        Map<Long, Object> result = new HashMap<>(ids.size() * 2);
+        Set<Long> missing = new HashSet<>();
+        Instant now = Instant.now();
+
+        for (Long id : ids) {
+            Entry<Object> entry = cached.get(id);
+            if (entry != null && entry.expires().isAfter(now)) {
+                result.put(id, entry.value());
+            } else {
+                missing.add(id);
+            }
+        }
+
+        metrics.referenceLookup(kind.name().toLowerCase(Locale.ROOT), ids.size() - missing.size(), missing.size());
+
+        if (!missing.isEmpty()) {
+            Instant expires = now.plus(ttl);
+
+            jdbcTemplate.query(kind.sql, Map.of("ids", missing), rs -> {
+                Object dto = kind.mapper.mapRow(rs, rs.getRow());
+                long id = rs.getLong("id");
+                if (cached.size() < maxEntries || cached.containsKey(id)) {
+                    cached.put(id, new Entry<>(dto, expires));
+                }
+                result.put(id, dto);
+            });
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the id of the Liferay group with the given key, {@code null} when no such group exists.
+     */
+    public Long groupId(String groupKey) {
+        String key = groupKey.toLowerCase(Locale.ROOT);
+        Entry<Long> entry = groups.get(key);
+
+        if (entry != null && entry.expires().isAfter(Instant.now())) {
+            metrics.referenceLookup("group", 1, 0);
+            return entry.value();
+        }
+
+        metrics.referenceLookup("group", 0, 1);
+        List<Long> ids = jdbcTemplate.queryForList(GROUP_SQL, Map.of("groupKey", key), Long.class);
+        Long id = ids.isEmpty() ? null : ids.get(0);
+
+        if (id != null) {
+            groups.put(key, new Entry<>(id, Instant.now().plus(ttl)));
+        }
+
+        return id;
+    }
+
+    @Scheduled(fixedDelayString = "${application.automa-export.reference-cache.prune-interval:PT5M}")
+    public void prune() {
+        Instant now = Instant.now();
+
+        entries.values().forEach(cached -> cached.values().removeIf(entry -> !entry.expires().isAfter(now)));
+        groups.values().removeIf(entry -> !entry.expires().isAfter(now));
+    }
+
+    @EventListener
+    public void onReferenceChanged(ReferenceChanged event) {
+        if (event.id() == null) {
+            entries.get(event.kind()).clear();
+        } else {
+            entries.get(event.kind()).remove(event.id());
+        }
+    }
+
+    private record Entry<T>(T value, Instant expires) {
+    }
+}
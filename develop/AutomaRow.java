@@ -0,0 +1,54 @@
+package it.ivert.kiop.pda.service.csv;
+
+import it.ivert.kiop.shared.service.dto.GenericPdaDTO;
+
+/**
+ * A PDA being rendered by the Automa export, together with the values resolved for it outside the DTO graph
+ * and the derived values shared by several columns. Instances are reused from row to row by {@link AutomaRowWriter}.
+ */
+public final class AutomaRow {
+
+    private final StringBuilder createDate = new StringBuilder(10);
+
+    private GenericPdaDTO pda;
+
+    private String iban;
+
+    private boolean createDateFormatted;
+
+    void reset(GenericPdaDTO pda, String iban) {
+        this.pda = pda;
+        this.iban = iban;
+        this.createDateFormatted = false;
+    }
+
+    public GenericPdaDTO pda() {
+        return pda;
+    }
+
+    /**
+     * The encrypted IBAN of the PDA payment, empty when the PDA has no payment or the layout does not emit it.
+     */
+    public String iban() {
+        return iban;
+    }
+
+    /**
+     * The PDA creation date formatted as {@code dd/MM/yyyy} in the Rome time zone, computed once per row for the csv.
+     *
+     * @return {@code null} when the PDA has no creation date.
+     */
+    public CharSequence createDate() {
+        if (pda.getCreateDate() == null) {
+            return null;
+        }
+
+        if (!createDateFormatted) {
+            createDate.setLength(0);
+            AutomaColumn.DATE_FORMATTER.formatTo(pda.getCreateDate().atZone(AutomaColumn.ZONE), createDate);
+            createDateFormatted = true;
+        }
+
+        return createDate;
+    }
+}
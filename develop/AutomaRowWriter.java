@@ -0,0 +1,197 @@
+package it.ivert.kiop.pda.service.csv;
+
+import it.ivert.kiop.shared.service.dto.GenericPdaDTO;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes Automa csv lines through a buffer reused for every row, escaping the fields that contain the
+ * separator, quotes or line breaks. The {@link #ndjson()} variant writes the same fields as one json object per line,
+ * keyed by column name, with no header. Not thread safe: every export uses its own instance.
+ */
+public final class AutomaRowWriter {
+
+    private static final char SEPARATOR = ';';
+
+    private static final char QUOTE = '"';
+
+    private final StringBuilder buffer = new StringBuilder(2048);
+
+    private final AutomaRow row = new AutomaRow();
+
+    private final boolean json;
+
+    private char[] chars = new char[2048];
+
+    public AutomaRowWriter() {
+        this(false);
+    }
+
+    private AutomaRowWriter(boolean json) {
+        this.json = json;
+    }
+
+    public static AutomaRowWriter ndjson() {
+        return new AutomaRowWriter(true);
+    }
+
+    /**
+     * A new writer of the same format, for rendering on another thread.
+     */
+    public AutomaRowWriter newInstance() {
+        return new AutomaRowWriter(json);
+    }
+
+    /**
+     * @return the UTF-8 size of the line written, {@code 0} for NDJSON which has no header.
+     */
+    public int writeHeader(AutomaCsvSchema schema, Writer writer) throws IOException {
+        if (json) {
+            return 0;
+        }
+
+        buffer.setLength(0);
+
+        AutomaColumn[] columns = schema.columns();
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                buffer.append(SEPARATOR);
+            }
+            int start = buffer.length();
+            buffer.append(columns[i].name());
+            this.escape(start);
+        }
+
+        return this.flushLine(writer);
+    }
+
+    /**
+     * Renders the PDA in the buffer and writes it only once complete, so a failing extractor leaves the writer untouched.
+     *
+     * @return the UTF-8 size of the line written.
+     */
+    public int writeRow(AutomaCsvSchema schema, GenericPdaDTO pda, String iban, Writer writer) throws IOException {
+        buffer.setLength(0);
+        row.reset(pda, iban);
+
+        if (json) {
+            return this.writeJson(schema, pda, writer);
+        }
+
+        AutomaColumn[] columns = schema.columns();
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                buffer.append(SEPARATOR);
+            }
+            int start = buffer.length();
+            columns[i].format(row, buffer);
+            this.escape(start);
+        }
+
+        return this.flushLine(writer);
+    }
+
+    private int writeJson(AutomaCsvSchema schema, GenericPdaDTO pda, Writer writer) throws IOException {
+        buffer.append("{\"id\":").append(pda.getId());
+
+        for (AutomaColumn column : schema.columns()) {
+            buffer.append(',');
+            this.jsonString(column.name());
+            buffer.append(':');
+
+            int start = buffer.length();
+            Object value = column.formatValue(row, buffer);
+
+            if (value == null) {
+                buffer.append("null");
+            } else if (column.type() == AutomaColumn.Type.FLAG) {
+                buffer.setLength(start);
+                buffer.append(Boolean.TRUE.equals(value));
+            } else if (column.type() == AutomaColumn.Type.DATE) {
+                buffer.setLength(start);
+                buffer.append(QUOTE);
+                AutomaColumn.formatDate(AutomaColumn.ISO_DATE_FORMATTER, value, buffer);
+                buffer.append(QUOTE);
+            } else if (column.type() != AutomaColumn.Type.NUMBER) {
+                this.escapeJson(start);
+            }
+        }
+
+        buffer.append('}');
+        return this.flushLine(writer);
+    }
+
+    private void jsonString(String value) {
+        int start = buffer.length();
+        buffer.append(value);
+        this.escapeJson(start);
+    }
+
+    /**
+     * Turns the text appended from {@code start} into a json string literal.
+     */
+    private void escapeJson(int start) {
+        for (int i = buffer.length() - 1; i >= start; i--) {
+            char c = buffer.charAt(i);
+
+            if (c == QUOTE || c == '\\') {
+                buffer.insert(i, '\\');
+            } else if (c < 0x20) {
+                String escaped = switch (c) {
+                    case '\n' -> "\\n";
+                    case '\r' -> "\\r";
+                    case '\t' -> "\\t";
+                    default -> String.format("\\u%04x", (int) c);
+                };
+                buffer.replace(i, i + 1, escaped);
+            }
+        }
+
+        buffer.insert(start, QUOTE);
+        buffer.append(QUOTE);
+    }
+
+    private void escape(int start) {
+        boolean quote = false;
+
+        for (int i = start; i < buffer.length() && !quote; i++) {
+            char c = buffer.charAt(i);
+            quote = c == SEPARATOR || c == QUOTE || c == '\n' || c == '\r';
+        }
+
+        if (!quote) {
+            return;
+        }
+
+        for (int i = buffer.length() - 1; i >= start; i--) {
+            if (buffer.charAt(i) == QUOTE) {
+                buffer.insert(i, QUOTE);
+            }
+        }
+
+        buffer.insert(start, QUOTE);
+        buffer.append(QUOTE);
+    }
+
+    private int flushLine(Writer writer) throws IOException {
+        buffer.append('\n');
+
+        int length = buffer.length();
+        if (chars.length < length) {
+            chars = new char[length * 2];
+        }
+
+        buffer.getChars(0, length, chars, 0);
+        writer.write(chars, 0, length);
+
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            if (c >= 0x80) {
+                bytes += c < 0x800 || Character.isSurrogate(c) ? 1 : 2;
+            }
+        }
+        return bytes;
+    }
+}
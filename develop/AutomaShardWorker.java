@@ -0,0 +1,20 @@
+package it.ivert.kiop.pda.service.csv;
+
+import it.ivert.kiop.shared.service.criteria.GenericPdaCriteria;
+import it.ivert.kiop.shared.service.dto.UserLiferayDTO;
+import org.springframework.security.core.Authentication;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Renders one shard of a sharded Automa export, see {@link AutomaShardedExportService}. The shard criteria restrict the
+ * export to an id range; the worker writes the complete export of that range, header included, to the output stream.
+ * {@link LocalAutomaShardWorker}, rendering in-process, is the only implementation: shards run on the workers of this
+ * instance and no remote worker exists.
+ */
+public interface AutomaShardWorker {
+    void export(AutomaExportFormat format, GenericPdaCriteria shardCriteria, List<UserLiferayDTO> userLiferayDTO,
+                Authentication authentication, AutomaExportOptions options, OutputStream outputStream) throws IOException;
+}
@@ -0,0 +1,252 @@
+package it.ivert.kiop.pda.service.csv;
+
+import it.ivert.kiop.pda.service.GenericPdaService;
+import it.ivert.kiop.shared.service.criteria.GenericPdaCriteria;
+import it.ivert.kiop.shared.service.dto.GenericPdaDTO;
+import it.ivert.kiop.shared.service.dto.UserLiferayDTO;
+import it.ivert.kiop.shared.web.rest.errors.BadRequestAlertException;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.security.core.Authentication;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Splits the export of a single criteria into id-range shards, renders them in parallel through the
+ * {@link AutomaShardWorker} and merges them in id order with a single header, so the output is the same as the one of
+ * {@link CreateAutomaCsv#export}. Shards are rendered in-process, on the workers of this instance.
+ * <p>
+ * Shards are spooled to {@code application.automa-export.shards.dir}, emptied at startup, and a failing shard is
+ * retried alone up to {@code application.automa-export.shards.max-attempts} times; a rejected export is not retried. The id span between the lowest and highest matching id
+ * is split in {@code application.automa-export.shards.count} equal ranges, rendered by at most
+ * {@code application.automa-export.shards.workers} workers at the same time. The progress listener of the options is
+ * notified by every attempt, so a retried shard is counted again.
+ */
+@Service
+public class AutomaShardedExportService {
+
+    private final Logger log = LoggerFactory.getLogger(AutomaShardedExportService.class);
+
+    private final GenericPdaService genericPdaService;
+
+    private final AutomaShardWorker shardWorker;
+
+    private final Path spoolDirectory;
+
+    private final int shardCount;
+
+    private final int maxAttempts;
+
+    private final ExecutorService executor;
+
+    public AutomaShardedExportService(GenericPdaService genericPdaService, AutomaShardWorker shardWorker,
+                                      @Value("${application.automa-export.shards.dir:${java.io.tmpdir}/automa-export-shards}") Path spoolDirectory,
+                                      @Value("${application.automa-export.shards.count:8}") int shardCount,
+                                      @Value("${application.automa-export.shards.workers:4}") int workers,
+                                      @Value("${application.automa-export.shards.max-attempts:3}") int maxAttempts) throws IOException {
+        this.genericPdaService = genericPdaService;
+        this.shardWorker = shardWorker;
+        this.spoolDirectory = Files.createDirectories(spoolDirectory);
+
+        try (var files = Files.list(this.spoolDirectory)) {
+            for (Path file : files.filter(Files::isRegularFile).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+        this.shardCount = Math.max(1, shardCount);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, workers), Thread.ofPlatform().name("automa-export-shard-", 0).factory());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public StreamingResponseBody stream(GenericPdaCriteria genericPdaCriteria, List<UserLiferayDTO> userLiferayDTO, Authentication authentication,
+                                        AutomaExportFormat format, AutomaExportOptions options) {
+        return outputStream -> this.export(genericPdaCriteria, userLiferayDTO, authentication, format, options, outputStream);
+    }
+
+    /**
+     * Writes the sharded export of the criteria; nothing is written when the criteria match no PDA. Only the
+     * {@code CSV} and {@code NDJSON} formats can be sharded.
+     */
+    public void export(GenericPdaCriteria genericPdaCriteria, List<UserLiferayDTO> userLiferayDTO, Authentication authentication,
+                       AutomaExportFormat format, AutomaExportOptions options, OutputStream outputStream) throws IOException {
+        if (format == AutomaExportFormat.ZIP) {
+            throw new BadRequestAlertException("Format not supported by sharded exports.", "AutomaExportCSV", "notShardableFormat");
+        }
+
+        Long minId = this.boundary(genericPdaCriteria, userLiferayDTO, authentication, Sort.Direction.ASC);
+        if (minId == null) {
+            return;
+        }
+        Long maxId = this.boundary(genericPdaCriteria, userLiferayDTO, authentication, Sort.Direction.DESC);
+
+        List<Path> parts = new ArrayList<>();
+        List<Future<?>> shards = new ArrayList<>();
+
+        try {
+            long span = maxId - minId + 1;
+            long shardSize = Math.max(1, (span + shardCount - 1) / shardCount);
+
+            for (long from = minId; from <= maxId; from += shardSize) {
+                GenericPdaCriteria shardCriteria = genericPdaCriteria.copy();
+                shardCriteria.id().setGreaterThanOrEqual(from);
+                shardCriteria.id().setLessThanOrEqual(Math.min(maxId, from + shardSize - 1));
+
+                Path part = Files.createTempFile(spoolDirectory, "shard-" + parts.size() + "-", format.getExtension());
+                int index = parts.size();
+                parts.add(part);
+                shards.add(executor.submit(() -> {
+                    this.render(index, format, shardCriteria, userLiferayDTO, authentication, options, part);
+                    return null;
+                }));
+            }
+
+            for (Future<?> shard : shards) {
+                shard.get();
+            }
+
+            this.merge(format, parts, outputStream);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Sharded automa export interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BadRequestAlertException badRequest) {
+                throw badRequest;
+            }
+            throw new IOException("Sharded automa export failed", e.getCause());
+        } finally {
+            shards.forEach(shard -> shard.cancel(true));
+            for (Path part : parts) {
+                Files.deleteIfExists(part);
+            }
+        }
+    }
+
+    /**
+     * Lowest or highest id matching the criteria, {@code null} when nothing matches.
+     */
+    private Long boundary(GenericPdaCriteria genericPdaCriteria, List<UserLiferayDTO> userLiferayDTO, Authentication authentication,
+                          Sort.Direction direction) {
+        List<GenericPdaDTO> genericPdaDTOS = genericPdaService.findByCriteria(
+            "automa", PageRequest.of(0, 1, Sort.by(direction, "id")), genericPdaCriteria, userLiferayDTO, authentication);
+        return genericPdaDTOS.isEmpty() ? null : genericPdaDTOS.get(0).getId();
+    }
+
+    private void render(int index, AutomaExportFormat format, GenericPdaCriteria shardCriteria, List<UserLiferayDTO> userLiferayDTO,
+                        Authentication authentication, AutomaExportOptions options, Path part) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(part, StandardOpenOption.TRUNCATE_EXISTING))) {
+                shardWorker.export(format, shardCriteria, userLiferayDTO, authentication, options, outputStream);
+                return;
+            } catch (BadRequestAlertException e) {
+                throw e;
+            } catch (IOException | RuntimeException e) {
+                if (attempt >= maxAttempts || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                log.warn("Automa export shard {} failed, attempt {} of {}", index, attempt, maxAttempts, e);
+            }
+        }
+    }
+
+    /**
+     * Concatenates the parts in shard order. The csv header of the first non-empty part is kept and the header line of
+     * every following part is skipped. The headers of all the parts are compared before any byte is written: the merge
+     * fails when they differ, as happens when the rows of two shards belong to different layouts.
+     */
+    private void merge(AutomaExportFormat format, List<Path> parts, OutputStream outputStream) throws IOException {
+        byte[][] headers = new byte[parts.size()][];
+
+        if (format == AutomaExportFormat.CSV) {
+            byte[] header = null;
+
+            for (int i = 0; i < parts.size(); i++) {
+                if (Files.size(parts.get(i)) == 0) {
+                    continue;
+                }
+
+                headers[i] = this.header(parts.get(i));
+                if (header == null) {
+                    header = headers[i];
+                } else if (!Arrays.equals(header, headers[i])) {
+                    throw new BadRequestAlertException("Rows of different layouts in automa export csv, use the zip export.",
+                        "AutomaExportCSV", "mixedLayouts");
+                }
+            }
+        }
+
+        WritableByteChannel target = Channels.newChannel(outputStream);
+        boolean headerWritten = false;
+
+        for (int i = 0; i < parts.size(); i++) {
+            try (FileChannel channel = FileChannel.open(parts.get(i), StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size == 0) {
+                    continue;
+                }
+
+                long position = 0;
+                if (headers[i] != null) {
+                    position = headerWritten ? headers[i].length : 0;
+                    headerWritten = true;
+                }
+
+                while (position < size) {
+                    position += channel.transferTo(position, size - position, target);
+                }
+            }
+        }
+
+        outputStream.flush();
+    }
+
+    /**
+     * @return the bytes of the csv header line of the part, line terminator included.
+     */
+    private byte[] header(Path part) throws IOException {
+        try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(part))) {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            int b;
+            boolean quoted = false;
+
+            while ((b = inputStream.read()) != -1) {
+                header.write(b);
+                if (b == '"') {
+                    quoted = !quoted;
+                } else if (b == '\n' && !quoted) {
+                    break;
+                }
+            }
+
+            return header.toByteArray();
+        }
+    }
+}
@@ -2,441 +2,578 @@ package it.ivert.kiop.pda.service.csv;
 
 import it.ivert.kiop.pda.config.Constants;
 import it.ivert.kiop.pda.service.GenericPdaService;
-import it.ivert.kiop.pda.service.PagamentoService;
 import it.ivert.kiop.shared.service.criteria.GenericPdaCriteria;
 import it.ivert.kiop.shared.service.dto.*;
 import it.ivert.kiop.shared.web.rest.errors.BadRequestAlertException;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
 import org.springframework.security.core.Authentication;
 import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import tech.jhipster.service.filter.InstantFilter;
 
-import java.text.SimpleDateFormat;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
+import java.io.BufferedWriter;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
 @Service
 public class CreateAutomaCsv {
 
+    private final Logger log = LoggerFactory.getLogger(CreateAutomaCsv.class);
+
+    /**
+     * Number of PDAs read from {@link GenericPdaService#findByCriteria} for every page of the export.
+     */
+    private static final int PAGE_SIZE = 1000;
+
+    /**
+     * Smallest number of rows rendered by a single task in parallel mode.
+     */
+    private static final int MIN_CHUNK_SIZE = 100;
+
     private final GenericPdaService genericPdaService;
 
-    private final PagamentoService pagamentoService;
+    private final AutomaIbanEncryptor ibanEncryptor;
+
+    private final AutomaCsvSchemas schemas;
+
+    private final AutomaExportWatermarkService watermarkService;
+
+    private final AutomaExportCache exportCache;
+
+    private final AutomaExportMetrics metrics;
+
+    private final AutomaProjectionReader projectionReader;
+
+    private final AutomaColumnProfiles columnProfiles;
 
-    public CreateAutomaCsv(GenericPdaService genericPdaService, PagamentoService pagamentoService) {
+    private final ForkJoinPool renderPool;
+
+    public CreateAutomaCsv(GenericPdaService genericPdaService, AutomaIbanEncryptor ibanEncryptor, AutomaCsvSchemas schemas,
+                           AutomaExportWatermarkService watermarkService, AutomaExportCache exportCache, AutomaExportMetrics metrics,
+                           AutomaProjectionReader projectionReader, AutomaColumnProfiles columnProfiles, @Value("${application.automa-export.parallelism:4}") int parallelism) {
         this.genericPdaService = genericPdaService;
-        this.pagamentoService = pagamentoService;
+        this.ibanEncryptor = ibanEncryptor;
+        this.schemas = schemas;
+        this.watermarkService = watermarkService;
+        this.exportCache = exportCache;
+        this.metrics = metrics;
+        this.projectionReader = projectionReader;
+        this.columnProfiles = columnProfiles;
+        this.renderPool = new ForkJoinPool(Math.max(1, Math.min(parallelism, Runtime.getRuntime().availableProcessors())));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        renderPool.shutdownNow();
     }
 
     public String create(GenericPdaCriteria genericPdaCriteria, List<UserLiferayDTO> userLiferayDTO, Authentication authentication) {
-        List<GenericPdaDTO> genericPdaDTOS =
-                genericPdaService.findByCriteria("automa", null, genericPdaCriteria, userLiferayDTO, authentication);
+        StringWriter writer = new StringWriter();
+
+        try {
+            this.export(genericPdaCriteria, userLiferayDTO, authentication, writer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return writer.toString();
+    }
 
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-        StringBuilder sb = new StringBuilder();
+    /**
+     * Streaming variant of {@link #create}: the csv is written to the response body page by page,
+     * so the export never holds more than {@link #PAGE_SIZE} PDAs in memory.
+     */
+    public StreamingResponseBody stream(GenericPdaCriteria genericPdaCriteria, List<UserLiferayDTO> userLiferayDTO, Authentication authentication) {
+        return this.stream(genericPdaCriteria, userLiferayDTO, authentication, AutomaExportOptions.defaults());
+    }
+
+    public StreamingResponseBody stream(GenericPdaCriteria genericPdaCriteria, List<UserLiferayDTO> userLiferayDTO, Authentication authentication,
+                                        AutomaExportOptions options) {
+        return outputStream -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+            this.export(genericPdaCriteria, userLiferayDTO, authentication, options, writer);
+            writer.flush();
+        };
+    }
+
+    public void export(GenericPdaCriteria genericPdaCriteria, List<UserLiferayDTO> userLiferayDTO, Authentication authentication,
+                       Writer writer) throws IOException {
+        this.export(genericPdaCriteria, userLiferayDTO, authentication, AutomaExportOptions.defaults(), writer);
+    }
+
+    /**
+     * Reads the criteria result in keyset pages ordered by id and writes every row straight to the writer.
+     * The header is generated from the first PDA found; nothing is written when the criteria match no PDA.
+     *
+     * @throws BadRequestAlertException when a row has a layout with another header than the first PDA, before any row
+     *                                  of its page is written: such criteria must be exported with {@link #exportZip}.
+     */
+    public void export(GenericPdaCriteria genericPdaCriteria, List<UserLiferayDTO> userLiferayDTO, Authentication authentication,
+                       AutomaExportOptions options, Writer writer) throws IOException {
+        this.export(List.of(genericPdaCriteria), userLiferayDTO, authentication, options, writer, genericPdaDTOS -> {
+        });
+    }
+
+    /**
+     * Writes the results of the criteria one after the other under a single header, see
+     * {@link #export(GenericPdaCriteria, List, Authentication, AutomaExportOptions, Writer)}.
+     *
+     * @param pageListener notified of every page once written.
+     */
+    private void export(List<GenericPdaCriteria> genericPdaCriteria, List<UserLiferayDTO> userLiferayDTO, Authentication authentication,
+                        AutomaExportOptions options, Writer writer, Consumer<List<GenericPdaDTO>> pageListener) throws IOException {
+        AutomaRowWriter rowWriter = new AutomaRowWriter();
+        AutomaCsvSchema[] header = {null};
+        PageHandler handler = (genericPdaDTOS, rowSchemas, ibans) -> {
+            AutomaCsvSchema headerSchema = header[0] != null ? header[0] : rowSchemas[0];
+
+            for (AutomaCsvSchema rowSchema : rowSchemas) {
+                if (!rowSchema.sameHeader(headerSchema)) {
+                    throw new BadRequestAlertException("Rows of different layouts in automa export csv, use the zip export.",
+                        "AutomaExportCSV", "mixedLayouts");
+                }
+            }
+
+            if (header[0] == null) {
+                long start = System.nanoTime();
+                int bytes = rowWriter.writeHeader(headerSchema, writer);
+                metrics.of(headerSchema).headerRendered(System.nanoTime() - start, bytes);
+                header[0] = headerSchema;
+            }
+
+            this.renderPage(options, rowWriter, genericPdaDTOS, rowSchemas, ibans, writer);
+            writer.flush();
+            options.pageWritten(genericPdaDTOS.size());
+            pageListener.accept(genericPdaDTOS);
+        };
+
+        for (GenericPdaCriteria criteria : genericPdaCriteria) {
+            this.readPages(criteria, userLiferayDTO, authentication, options, handler);
+        }
+    }
+
+    /**
+     * Streaming variant of {@link #exportCached}.
+     */
+    public StreamingResponseBody streamCached(GenericPdaCriteria genericPdaCriteria, List<UserLiferayDTO> userLiferayDTO,
+                                              Authentication authentication, AutomaExportOptions options) {
+        return outputStream -> this.exportCached(genericPdaCriteria, userLiferayDTO, authentication, options, outputStream);
+    }
 
-        sb.append(this.generateHeaderCsv(
-            genericPdaDTOS.get(0).getGroup().getGroupKey().toLowerCase(), genericPdaDTOS.get(0).getType().getId()));
-        sb.append("\n");
+    /**
+     * Serves the csv from {@link AutomaExportCache} when the same criteria were exported for the same user scope.
+     * A cached file is discarded as soon as a PDA of its id range has been modified or deleted after its snapshot, or a
+     * PDA matching the criteria has been created or modified after it.
+     */
+    public void exportCached(GenericPdaCriteria genericPdaCriteria, List<UserLiferayDTO> userLiferayDTO, Authentication authentication,
+                             AutomaExportOptions options, OutputStream outputStream) throws IOException {
+        List<String> columns = this.selectedColumns(options);
+        String key = exportCache.key(columns != null ? "csv:" + String.join(";", columns) : "csv", genericPdaCriteria, userLiferayDTO,
+            authentication);
+        AutomaExportCache.Entry entry = exportCache.get(key);
 
-        for (GenericPdaDTO pda : genericPdaDTOS) {
-            sb.append(this.generateBodyCsv(pda));
-            sb.append("\n");
+        if (entry != null && this.stale(genericPdaCriteria, userLiferayDTO, authentication, entry)) {
+            entry.close();
+            exportCache.invalidate(key);
+            entry = null;
         }
 
-        return sb.toString();
+        if (entry == null) {
+            AutomaExportCache.IdRange ids = new AutomaExportCache.IdRange();
+            entry = exportCache.put(key, Instant.now(), ids, cacheStream -> {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(cacheStream, StandardCharsets.UTF_8));
+                this.export(List.of(genericPdaCriteria), userLiferayDTO, authentication, options, writer, genericPdaDTOS -> {
+                    ids.add(genericPdaDTOS.get(0).getId());
+                    ids.add(genericPdaDTOS.get(genericPdaDTOS.size() - 1).getId());
+                });
+                writer.flush();
+            });
+        }
+
+        try (AutomaExportCache.Entry served = entry) {
+            Files.copy(served.file(), outputStream);
+        }
+    }
+
+    /**
+     * Whether the cached entry may no longer match the criteria: a PDA of its id range changed, whatever the filters
+     * it matches now, or a PDA matching the criteria was created or modified after the snapshot. The snapshot bound is
+     * combined with the date bounds of the criteria, never replacing them.
+     */
+    private boolean stale(GenericPdaCriteria genericPdaCriteria, List<UserLiferayDTO> userLiferayDTO, Authentication authentication,
+                          AutomaExportCache.Entry entry) {
+        if (exportCache.changedSince(entry)) {
+            return true;
+        }
+
+        GenericPdaCriteria modifiedCriteria = genericPdaCriteria.copy();
+        after(modifiedCriteria.modifiedDate(), entry.snapshot());
+
+        GenericPdaCriteria createdCriteria = genericPdaCriteria.copy();
+        after(createdCriteria.createDate(), entry.snapshot());
+
+        return this.matches(modifiedCriteria, userLiferayDTO, authentication) || this.matches(createdCriteria, userLiferayDTO, authentication);
+    }
+
+    private boolean matches(GenericPdaCriteria genericPdaCriteria, List<UserLiferayDTO> userLiferayDTO, Authentication authentication) {
+        return !genericPdaService.findByCriteria("automa", PageRequest.of(0, 1), genericPdaCriteria, userLiferayDTO, authentication).isEmpty();
+    }
+
+    private static void after(InstantFilter filter, Instant instant) {
+        if (filter.getGreaterThan() == null || filter.getGreaterThan().isBefore(instant)) {
+            filter.setGreaterThan(instant);
+        }
+    }
+
+    /**
+     * Streaming variant of {@link #exportDelta}.
+     */
+    public StreamingResponseBody streamDelta(String consumer, String mandate, GenericPdaCriteria genericPdaCriteria,
+                                             List<UserLiferayDTO> userLiferayDTO, Authentication authentication, AutomaExportOptions options) {
+        return outputStream -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+            this.exportDelta(consumer, mandate, genericPdaCriteria, userLiferayDTO, authentication, options, writer);
+        };
+    }
+
+    /**
+     * Incremental export: only the PDAs of the mandate group created or modified after the consumer's watermark, up to
+     * {@link AutomaExportWatermarkService#upperBound}, are written. The PDAs modified in that window come first, then
+     * the ones created in it and never modified, so a PDA whose modification date is not stamped on insert is not
+     * missed. The watermark is claimed before anything is written and advances to the bound once every row has been
+     * written and flushed, so a failed export is simply repeated by the next run. Use
+     * {@link AutomaExportWatermarkService#rewind} to resend.
+     *
+     * @throws BadRequestAlertException when the criteria already filter the creation or modification date, or the
+     *                                  watermark is claimed by a concurrent export.
+     */
+    public void exportDelta(String consumer, String mandate, GenericPdaCriteria genericPdaCriteria, List<UserLiferayDTO> userLiferayDTO,
+                            Authentication authentication, AutomaExportOptions options, Writer writer) throws IOException {
+        if (genericPdaCriteria.getCreateDate() != null || genericPdaCriteria.getModifiedDate() != null) {
+            throw new BadRequestAlertException("Date filters are not allowed in delta exports.", "AutomaExportCSV", "deltaDateFilter");
+        }
+
+        GenericPdaCriteria deltaCriteria = watermarkService.scope(mandate, genericPdaCriteria);
+        Instant from = watermarkService.get(consumer, mandate);
+        Instant to = watermarkService.upperBound();
+
+        if (from != null && !to.isAfter(from)) {
+            return;
+        }
+
+        GenericPdaCriteria modifiedCriteria = deltaCriteria.copy();
+        if (from != null) {
+            modifiedCriteria.modifiedDate().setGreaterThan(from);
+        }
+        modifiedCriteria.modifiedDate().setLessThanOrEqual(to);
+
+        GenericPdaCriteria createdCriteria = deltaCriteria.copy();
+        if (from != null) {
+            createdCriteria.createDate().setGreaterThan(from);
+        }
+        createdCriteria.createDate().setLessThanOrEqual(to);
+        createdCriteria.modifiedDate().setSpecified(false);
+
+        AutomaExportWatermarkService.Claim claim = watermarkService.claim(consumer, mandate, from);
+
+        try {
+            this.export(List.of(modifiedCriteria, createdCriteria), userLiferayDTO, authentication, options, writer, genericPdaDTOS -> {
+            });
+            writer.flush();
+        } catch (IOException | RuntimeException e) {
+            watermarkService.release(claim);
+            throw e;
+        }
+
+        watermarkService.advance(claim, to);
+    }
+
+    /**
+     * Streaming variant of {@link #exportNdjson}.
+     */
+    public StreamingResponseBody streamNdjson(GenericPdaCriteria genericPdaCriteria, List<UserLiferayDTO> userLiferayDTO,
+                                              Authentication authentication, AutomaExportOptions options) {
+        return outputStream -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+            this.exportNdjson(genericPdaCriteria, userLiferayDTO, authentication, options, writer);
+            writer.flush();
+        };
     }
 
-    private String generateHeaderCsv(String groupKey, Long type) {
-        switch (groupKey) {
-            case Constants.MANDATO_ENEL_ENERGIA:
-                return String.join(";", List.of(
-                    "segmento",
-                    "formaGiuridica",
-                    "numeroContrattoPreferica",
-                    "nomePreverifica",
-                    "cognomePreverifica",
-                    "cfPreverifica",
-                    "piPreverifica",
-                    "dataFirmaInfoContratto",
-                    "codiceIncaricatoInfoContratto",
-                    "owner",
-                    "sottoscrizioneContratto",
-                    "podForniture",
-                    "tipoPdaEnergia",
-                    "capForniture",
-                    "localitaForniture",
-                    "tipodocumentoAnagraficaRes",
-                    "numerodocumentoAnagraficaRes",
-                    "rilasciatodaAnagraficaRes",
-                    "rilasciatoilAnagraficaRes",
-                    "telefonofissoAnagraficaRes",
-                    "cellulareAnagraficaRes",
-                    "emailAnagraficaRes",
-                    "pecAnagraficaRes",
-                    "toponomasticaAddress",
-                    "indrizzoAddress",
-                    "civicoAddress",
-                    "scalaAddress",
-                    "pianoCivicoAddress",
-                    "internoAddress",
-                    "capAddress",
-                    "comuneAddress",
-                    "provinciaAddress"
-                ));
-            case Constants.MANDATO_FASTWEB:
-                List<String> fwbHead = new ArrayList<>(List.of(
-                    "ID Firma Elettronica",
-                    "Envelope ID",
-                    "Tipo Invio",
-                    "Tipo Offerta",
-                    "Offerta Fissa",
-                    "Offerta Mobile 1",
-                    "Offerta Mobile 2",
-                    "Ragione Sociale",
-                    "Forma Giuridica",
-                    "Partita Iva",
-                    "Account",
-                    "Nome",
-                    "Cognome",
-                    "Sesso",
-                    "Data Nascita",
-                    "Nazione Nascita",
-                    "Città Nascita",
-                    "Provincia Nascita",
-                    "Codice Fiscale",
-                    "Numero Mobile",
-                    "Numero Fisso",
-                    "Email",
-                    "Tipo Documento Riconoscimento",
-                    "Numero Documento Riconoscimento",
-                    "Emittente Documento Riconoscimento",
-                    "Data Rilascio Documento Riconoscimento",
-                    "Nazionalità Rilascio Documento Riconoscimento",
-                    "Cittadinanza Documento Riconoscimento",
-                    "Città Rilascio Documento Riconoscimento",
-                    "Provincia Rilascio Documento Riconoscimento",
-                    "Città Residenza",
-                    "Provincia Residenza",
-                    "Indirizzo Residenza",
-                    "Civico Residenza",
-                    "CAP Residenza",
-                    "Delegato",
-                    "Nome Delegato",
-                    "Cognome Delegato",
-                    "Sesso Delegato",
-                    "Data Nascita Delegato",
-                    "Nazione Nascita Delegato",
-                    "Città Nascita Delegato",
-                    "Provincia Nascita Delegato",
-                    "Codice Fiscale Delegato",
-                    "Numero Mobile Delegato",
-                    "Email Delegato",
-                    "Tipo Documento Riconoscimento Delegato",
-                    "Numero Documento Riconoscimento Delegato",
-                    "Emittente Documento Riconoscimento Delegato",
-                    "Data Documento Riconoscimento Delegato",
-                    "Nazionalità Documento Riconoscimento Delegato",
-                    "Città Documento Riconoscimento Delegato",
-                    "Provincia Documento Riconoscimento Delegato",
-                    "Città Attivazione",
-                    "Provincia Attivazione",
-                    "Indirizzo Attivazione",
-                    "Civico Attivazione",
-                    "CAP Attivazione",
-                    "Scala Attivazione",
-                    "Piano Attivazione",
-                    "Interno Attivazione",
-                    "Tecnologia Attivazione",
-                    "Scelta Modem"
-                ));
-
-                if (type == 1) {
-                    fwbHead.addAll(List.of(
-                        "NP",
-                        "Numero Telefonico",
-                        "Codice Migrazione",
-                        "Operatore Provenienza Fisso",
-                        "Tipo Linea"
-                    ));
-                } else {
-                    fwbHead.addAll(List.of(
-                        "NP 1",
-                        "Numero Telefonico 1",
-                        "Codice Migrazione 1",
-                        "Operatore Provenienza Fisso 1",
-                        "Tipo Linea 1"
-                    ));
+    /**
+     * Writes the criteria result as NDJSON: one flat object per PDA and line, with the PDA id and the same fields,
+     * formatting and layout as the csv row, keyed by column name. Placeholder and missing fields are {@code null},
+     * the {@code VERO}/{@code FALSO} columns are booleans, numeric columns are numbers and date columns are ISO-8601
+     * {@code yyyy-MM-dd} strings. Rows of different mandates can share the same stream.
+     */
+    public void exportNdjson(GenericPdaCriteria genericPdaCriteria, List<UserLiferayDTO> userLiferayDTO, Authentication authentication,
+                             AutomaExportOptions options, Writer writer) throws IOException {
+        AutomaRowWriter rowWriter = AutomaRowWriter.ndjson();
+
+        this.readPages(genericPdaCriteria, userLiferayDTO, authentication, options, (genericPdaDTOS, rowSchemas, ibans) -> {
+            this.renderPage(options, rowWriter, genericPdaDTOS, rowSchemas, ibans, writer);
+            writer.flush();
+            options.pageWritten(genericPdaDTOS.size());
+        });
+    }
+
+    /**
+     * Streaming variant of {@link #exportZip}, for criteria matching more than one mandate or type.
+     */
+    public StreamingResponseBody streamZip(GenericPdaCriteria genericPdaCriteria, List<UserLiferayDTO> userLiferayDTO,
+                                           Authentication authentication, AutomaExportOptions options) {
+        return outputStream -> this.exportZip(genericPdaCriteria, userLiferayDTO, authentication, options, outputStream);
+    }
+
+    /**
+     * Exports the criteria result with a single query, partitioning the rows by {@code (groupKey, type)} as they are read.
+     * Every partition is spooled to disk with its own header and written as a separate csv entry of the ZIP.
+     */
+    public void exportZip(GenericPdaCriteria genericPdaCriteria, List<UserLiferayDTO> userLiferayDTO, Authentication authentication,
+                          AutomaExportOptions options, OutputStream outputStream) throws IOException {
+        AutomaRowWriter rowWriter = new AutomaRowWriter();
+
+        try (AutomaCsvPartitions partitions = new AutomaCsvPartitions(metrics)) {
+            this.readPages(genericPdaCriteria, userLiferayDTO, authentication, options, (genericPdaDTOS, rowSchemas, ibans) -> {
+                Map<String, List<Integer>> rowsByPartition = new LinkedHashMap<>();
+
+                for (int i = 0; i < rowSchemas.length; i++) {
+                    rowsByPartition.computeIfAbsent(this.partitionKey(rowSchemas[i], genericPdaDTOS.get(i)), key -> new ArrayList<>()).add(i);
                 }
 
-                fwbHead.addAll(List.of(
-                    "NP Dati",
-                    "Codice Migrazione Dati",
-                    "Operatore Provenienza Dati",
-                    "Segmento",
-                    "Partnership",
-                    "Sconto 1",
-                    "Opzione Fisso 1",
-                    "Opzione Fisso 2",
-                    "Opzione Fisso 3",
-                    "Seconda linea presente",
-                    "NP 2",
-                    "Numero Telefonico 2",
-                    "Codice Migrazione 2",
-                    "Operatore Provenienza Fisso 2",
-                    "Tipo Linea 2",
-                    "MNP 1",
-                    "Numero Sim 1",
-                    "ICCID Mobile 1",
-                    "Operatore Provenienza Mobile 1",
-                    "Tipo Contratto Mobile 1",
-                    "Trasferimento Credito Mobile 1",
-                    "MNP 2",
-                    "Numero Sim 2",
-                    "ICCID Mobile 2",
-                    "Operatore Provenienza Mobile 2",
-                    "Tipo Contratto Mobile 2",
-                    "Trasferimento Credito Mobile 2",
-                    "MNP 3",
-                    "Numero Sim 3",
-                    "ICCID Mobile 3",
-                    "Operatore Provenienza Mobile 3",
-                    "Tipo Contratto Mobile 3",
-                    "Trasferimento Credito Mobile 3",
-                    "Tipo Pagamento",
-                    "IBAN",
-                    "Intestato a",
-                    "Shop ID",
-                    "Payment ID",
-                    "Circuito Carta",
-                    "Numero Carta",
-                    "Scadenza Carta",
-                    "Token Carta",
-                    "Città Spedizione",
-                    "Provincia Spedizione",
-                    "Indirizzo Spedizione",
-                    "Civico Spedizione",
-                    "CAP Spedizione",
-                    "Spedizione Presso",
-                    "Utente Creazione",
-                    "Comsy Creazione",
-                    "Ragione Sociale Comsy Creazione",
-                    "Canale Comsy Creazione",
-                    "Data Creazione",
-                    "Data Firma",
-                    "Stato Inserimento CPQ",
-                    "Data Inserimento CPQ",
-                    "Data Modifica",
-                    "Data Scadenza",
-                    "Data Invio SMS",
-                    "ID PDA"
-                ));
-
-                return String.join(";", fwbHead);
-            default:
-                throw new BadRequestAlertException("Not managed group in automa export csv.", "AutomaExportCSV", "notManagedGroup");
+                for (Map.Entry<String, List<Integer>> partition : rowsByPartition.entrySet()) {
+                    List<Integer> rows = partition.getValue();
+                    List<GenericPdaDTO> partitionPdas = new ArrayList<>(rows.size());
+                    AutomaCsvSchema[] partitionSchemas = new AutomaCsvSchema[rows.size()];
+
+                    for (int i = 0; i < partitionSchemas.length; i++) {
+                        partitionPdas.add(genericPdaDTOS.get(rows.get(i)));
+                        partitionSchemas[i] = rowSchemas[rows.get(i)];
+                    }
+
+                    this.renderPage(options, rowWriter, partitionPdas, partitionSchemas, ibans,
+                        partitions.writer(partition.getKey(), partitionSchemas[0]));
+                }
+
+                options.pageWritten(genericPdaDTOS.size());
+            });
+
+            partitions.writeZip(outputStream);
         }
     }
 
-    private String generateBodyCsv(GenericPdaDTO pda) {
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd/MM/yyyy");
-
-        BackOfficeDTO backoffice = pda.getBackOffice();
-        CustomerDTO customer = pda.getCustomer();
-        OfferDTO offerPhone = pda.getOffer();
-        DocumentoDTO customerDoc = pda.getCustomerDoc();
-        TipoDocumentoDTO tipoDoc = pda.getCustomerDoc().getTipoDocumento();
-        EnteRilascioDocumentoDTO enteRilascioDoc = customerDoc != null ? customerDoc.getEnteRilascioDocumento() : null;
-        TypeDTO segmento = pda.getType();
-        PagamentoDTO payment = pda.getPagamento();
-        String iban = payment != null ? pagamentoService.getBankIbanEncrypt(payment) : "";
-
-        switch (pda.getGroup().getGroupKey().toLowerCase()) {
-            case Constants.MANDATO_ENEL_ENERGIA:
-                return String.join(";", List.of(
-                    String.valueOf(segmento != null && segmento.getName() != null ? segmento.getName() : ""), // mandato
-                    String.valueOf(customer.getFormaGiuridica() != null ? customer.getFormaGiuridica() : ""), // formaGiuridica
-                    String.valueOf(pda.getCodeAccount() != null ? pda.getCodeAccount() : ""), // numeroContrattoPreferica
-                    String.valueOf(customer.getNome() != null ? customer.getNome() : ""), // nomePreverifica
-                    String.valueOf(customer.getCognome() != null ? customer.getCognome() : ""), // cognomePreverifica
-                    String.valueOf(customer.getCodFiscale() != null ? customer.getCodFiscale() : ""), // cfPreverifica
-                    String.valueOf(customer.getPartitaIva() != null ? customer.getPartitaIva() : ""), // piPreverifica
-                    "", // dataFirmaInfoContratto
-                    "", // codiceIncaricatoInfoContratto
-                    String.valueOf(pda.getOwnerId() != null && pda.getOwnerId().getScreenName() != null ? pda.getOwnerId().getScreenName() : ""), // owner
-                    "", // sottoscrizioneContratto
-                    String.valueOf(pda.getPod() != null ? pda.getPod() : ""), // podForniture
-                    String.valueOf(pda.getTipoPdaEnergia() != null ? pda.getTipoPdaEnergia() : ""), // tipoPdaEnergia
-                    String.valueOf(pda.getIndirizzoCap() != null ? pda.getIndirizzoCap() : ""), // capForniture
-                    String.valueOf(pda.getIndirizzoCittaTxt() != null ? pda.getIndirizzoCittaTxt() : ""), // localitaForniture
-                    String.valueOf(customerDoc != null && customerDoc.getTipoDocumento() != null && customerDoc.getTipoDocumento().getDescription() != null
-                        ? customerDoc.getTipoDocumento().getDescription()
-                        : "" ), // tipodocumentoAnagraficaRes
-                    String.valueOf(customerDoc != null && customerDoc.getNum() != null ? customerDoc.getNum() : ""), // numerodocumentoAnagraficaRes
-                    String.valueOf(enteRilascioDoc != null && enteRilascioDoc.getName() != null ? enteRilascioDoc.getName() : ""), // rilasciatodaAnagraficaRes
-                    customerDoc != null && customerDoc.getDataRilascio() != null
-                        ? customerDoc.getDataRilascio().format(formatter)
-                        : "", // rilasciatoilAnagraficaRes
-                    String.valueOf(pda.getTelFisso() != null ? pda.getTelFisso() : ""), // telefonofissoAnagraficaRes
-                    String.valueOf(customer.getCellulare1() != null ? customer.getCellulare1() : ""), // cellulareAnagraficaRes
-                    String.valueOf(customer.getEmail() != null ? customer.getEmail() : ""), // emailAnagraficaRes
-                    String.valueOf(customer.getEmailPec() != null ? customer.getEmailPec() : ""), // pecAnagraficaRes
-                    String.valueOf(pda.getToponimo() != null && pda.getToponimo().getName() != null ? pda.getToponimo().getName() : ""), // toponomasticaAddress
-                    String.valueOf(pda.getIndirizzoVia() != null ? pda.getIndirizzoVia() : ""), // indrizzoAddress
-                    String.valueOf(pda.getIndirizzoNum() != null ? pda.getIndirizzoNum() : ""), // civicoAddress
-                    String.valueOf(pda.getIndirizzoScala() != null ? pda.getIndirizzoScala() : ""), // scalaAddress
-                    String.valueOf(pda.getIndirizzoPiano() != null ? pda.getIndirizzoPiano() : ""), // pianoCivicoAddress
-                    String.valueOf(pda.getIndirizzoInterno() != null ? pda.getIndirizzoInterno() : ""), // internoAddress
-                    String.valueOf(pda.getIndirizzoCap() != null ? pda.getIndirizzoCap() : ""), // capAddress
-                    String.valueOf(pda.getIndirizzoCittaTxt() != null ? pda.getIndirizzoCittaTxt() : ""), // comuneAddress,
-                    String.valueOf(pda.getIndirizzoProvinciaSpedizioneTxt() != null ? pda.getIndirizzoProvinciaSpedizioneTxt() : "") // provinciaAddress
-                ));
-            case Constants.MANDATO_FASTWEB:
-                try {
-                    return String.join(";", List.of(
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        pda.getPdaType() != null ? Constants.formatPdaType(pda.getPdaType()) : "",
-                        offerPhone != null && offerPhone.getName() != null ? offerPhone.getName() : "",
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        customer != null && customer.getRagSociale() != null ? customer.getRagSociale() : "",
-                        customer != null && customer.getFormaGiuridica() != null ? customer.getFormaGiuridica() : "",
-                        customer != null && customer.getPartitaIva() != null ? customer.getPartitaIva() : "",
-                        backoffice != null && backoffice.getAccount() != null ? backoffice.getAccount() : "",
-                        customer != null && customer.getNome() != null ? customer.getNome() : "",
-                        customer != null && customer.getCognome() != null ? customer.getCognome() : "",
-                        customer != null && customer.getSesso() != null ? customer.getSesso() : "",
-                        customer != null && customer.getNascitaData() != null ? customer.getNascitaData().format(formatter) : "",
-                        (customer != null && customer.getNascitaNazioneTxt() != null && !customer.getNascitaNazioneTxt().isEmpty() ?
-                            customer.getNascitaNazioneTxt() : "ITALIA").toUpperCase(),
-                        customer != null && customer.getNascitaLuogoTxt() != null ? customer.getNascitaLuogoTxt().toUpperCase() : "",
-                        customer != null && customer.getNascitaProvinciaTxt() != null ? customer.getNascitaProvinciaTxt() : "",
-                        customer != null && customer.getCodFiscale() != null ? customer.getCodFiscale() : "",
-                        customer != null && customer.getContattoCellulare() != null ? customer.getContattoCellulare() : "",
-                        customer != null && customer.getContattoTelefono() != null ? customer.getContattoTelefono() : "",
-                        customer != null && customer.getEmail() != null ? customer.getEmail() : "",
-                        tipoDoc != null ? tipoDoc.getName() : "",
-                        customerDoc != null ? customerDoc.getNum() : "",
-                        enteRilascioDoc != null ? enteRilascioDoc.getName() : "",
-                        customerDoc != null && customerDoc.getDataRilascio() != null ?
-                            customerDoc.getDataRilascio().format(formatter) : "",
-                        (customerDoc != null && customerDoc.getNazionalitaTxt() != null && !customerDoc.getNazionalitaTxt().isEmpty() ?
-                            customerDoc.getNazionalitaTxt() : "ITALIA").toUpperCase(),
-                        customerDoc != null && customerDoc.getCittadinanza() != null && !customerDoc.getCittadinanza().isEmpty() ?
-                            customerDoc.getCittadinanza() : "",
-                        customerDoc != null && customerDoc.getLuogoRilascioTxt() != null ?
-                            customerDoc.getLuogoRilascioTxt().toUpperCase() : "",
-                        customerDoc != null && customerDoc.getProvRilascioTxt() != null ? customerDoc.getProvRilascioTxt() : "",
-                        customer != null && customer.getIndirizzoCittaTxt() != null ? customer.getIndirizzoCittaTxt().toUpperCase() : "",
-                        customer != null && customer.getIndirizzoProvinciaTxt() != null ? customer.getIndirizzoProvinciaTxt() : "",
-                        customer != null && customer.getIndirizzoVia() != null && customer.getIndirizzoToponimo() != null ?
-                            (customer.getIndirizzoToponimo().getName() + " " + customer.getIndirizzoVia()).toUpperCase() : "",
-                        customer != null && customer.getIndirizzoNum() != null ? customer.getIndirizzoNum() : "",
-                        customer != null && customer.getIndirizzoCap() != null ? customer.getIndirizzoCap() : "",
-                        "FALSO",
-                        "",
-                        "",
-                        "",
-                        "",
-                        "",
-                        "",
-                        "",
-                        "",
-                        "",
-                        "",
-                        "",
-                        "",
-                        "",
-                        "",
-                        "",
-                        "",
-                        "",
-                        pda.getIndirizzoCittaTxt() != null ? pda.getIndirizzoCittaTxt().toUpperCase() : "",
-                        pda.getIndirizzoProvinciaTxt() != null ? pda.getIndirizzoProvinciaTxt() : "",
-                        pda.getIndirizzoVia() != null && pda.getToponimo() != null && pda.getToponimo().getName() != null ?
-                            (pda.getToponimo().getName() + " " + pda.getIndirizzoVia()).toUpperCase() : "",
-                        pda.getIndirizzoNum() != null ? pda.getIndirizzoNum() : "",
-                        pda.getIndirizzoCap() != null ? pda.getIndirizzoCap() : "",
-                        pda.getIndirizzoScala() != null ? pda.getIndirizzoScala() : "",
-                        pda.getIndirizzoPiano() != null ? pda.getIndirizzoPiano() : "T",
-                        pda.getIndirizzoInterno() != null ? pda.getIndirizzoInterno() : "",
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        pda.getLnanp() != null ? Constants.formatTipoLinea(pda.getLnanp()) : "",
-                        pda.getTelFisso() != null ? pda.getTelFisso() : "",
-                        pda.getNpMigrationCodeVoce() != null ? pda.getNpMigrationCodeVoce() : "",
-                        pda.getGestoreFisso() != null ? pda.getGestoreFisso() : "",
-                        Constants.EMPTY_STRING,
-                        pda.getNpMigrationCodeDati() != null && !pda.getNpMigrationCodeDati().isEmpty() ? "VERO" : "FALSO",
-                        pda.getNpMigrationCodeDati() != null ? pda.getNpMigrationCodeDati() : "",
-                        pda.getGestoreDati() != null ? pda.getGestoreDati() : "",
-                        segmento != null ? segmento.getName() : "",
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        payment != null && payment.getPaymentType() != null ? payment.getPaymentType() : "",
-                        iban != null && !iban.isEmpty() ? iban : "",
-                        payment == null || payment.getBankCustomerType() == null || payment.getBankCustomerType() == 0 ?
-                            "CF" : "PIVA",
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        pda.getIndirizzoCittaSpedizioneTxt() != null ? pda.getIndirizzoCittaSpedizioneTxt().toUpperCase() : "",
-                        pda.getIndirizzoProvinciaSpedizioneTxt() != null ? pda.getIndirizzoProvinciaSpedizioneTxt() : "",
-                        pda.getIndirizzoViaSpedizione() != null && pda.getToponimoIndirizzoSpedizione() != null ?
-                            (pda.getToponimoIndirizzoSpedizione().getName() + " " + pda.getIndirizzoViaSpedizione()).toUpperCase() : "",
-                        pda.getIndirizzoNumSpedizione() != null ? pda.getIndirizzoNumSpedizione() : "",
-                        pda.getIndirizzoCapSpedizione() != null ? pda.getIndirizzoCapSpedizione() : "",
-                        "",
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        pda.getCreateDate() != null ? pda.getCreateDate().atZone(ZoneId.of("Europe/Rome")).format(formatter) : "",
-                        pda.getCreateDate() != null ? pda.getCreateDate().atZone(ZoneId.of("Europe/Rome")).format(formatter) : "",
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        pda.getCreateDate() != null ? pda.getCreateDate().atZone(ZoneId.of("Europe/Rome")).format(formatter) : "",
-                        Constants.EMPTY_STRING,
-                        Constants.EMPTY_STRING,
-                        pda.getId() != null ? pda.getId().toString() : ""
-                    ));
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    return null;
+    private String partitionKey(AutomaCsvSchema schema, GenericPdaDTO pda) {
+        String groupKey = schema.getMandate().toLowerCase();
+        return pda.getType() != null && pda.getType().getId() != null ? groupKey + "-" + pda.getType().getId() : groupKey;
+    }
+
+    /**
+     * Reads the criteria result in keyset pages ordered by id, resolving the layout of every row and the IBANs it needs.
+     * With {@link AutomaExportOptions#projection} the pages come from the flat projection query whenever the criteria are
+     * restricted to the group of the mandate, otherwise from {@link GenericPdaService#findByCriteria}. A column subset of the options
+     * replaces the layout of every row with its subset.
+     */
+    private void readPages(GenericPdaCriteria genericPdaCriteria, List<UserLiferayDTO> userLiferayDTO, Authentication authentication,
+                           AutomaExportOptions options, PageHandler handler) throws IOException {
+        UnaryOperator<AutomaCsvSchema> layout = this.layout(options);
+
+        if (options.getProjection() != null && projectionReader.supports(options.getProjection(), genericPdaCriteria)) {
+            projectionReader.read(options.getProjection(), genericPdaCriteria, userLiferayDTO, authentication, PAGE_SIZE,
+                (genericPdaDTOS, rowSchemas) -> this.handlePage(genericPdaDTOS, rowSchemas, layout, handler));
+            return;
+        }
+
+        GenericPdaCriteria pageCriteria = genericPdaCriteria;
+
+        while (true) {
+            GenericPdaCriteria queryCriteria = pageCriteria;
+            List<GenericPdaDTO> genericPdaDTOS = metrics.query().record(() -> genericPdaService.findByCriteria(
+                "automa", PageRequest.of(0, PAGE_SIZE, Sort.by("id")), queryCriteria, userLiferayDTO, authentication));
+
+            if (genericPdaDTOS.isEmpty()) {
+                break;
+            }
+
+            AutomaCsvSchema[] rowSchemas = new AutomaCsvSchema[genericPdaDTOS.size()];
+            for (int i = 0; i < rowSchemas.length; i++) {
+                rowSchemas[i] = schemas.get(genericPdaDTOS.get(i));
+            }
+
+            this.handlePage(genericPdaDTOS, rowSchemas, layout, handler);
+
+            if (genericPdaDTOS.size() < PAGE_SIZE) {
+                break;
+            }
+
+            pageCriteria = genericPdaCriteria.copy();
+            pageCriteria.id().setGreaterThan(genericPdaDTOS.get(genericPdaDTOS.size() - 1).getId());
+        }
+    }
+
+    /**
+     * The layout of the rows of one export: the column subset of the options, compiled once per export and layout, or
+     * the layout itself.
+     */
+    private UnaryOperator<AutomaCsvSchema> layout(AutomaExportOptions options) {
+        List<String> columns = this.selectedColumns(options);
+
+        if (columns == null) {
+            return UnaryOperator.identity();
+        }
+
+        Map<AutomaCsvSchema, AutomaCsvSchema> subsets = new IdentityHashMap<>();
+        return schema -> subsets.computeIfAbsent(schema, layout -> layout.select(columns));
+    }
+
+    /**
+     * @return the columns selected by the options, {@code null} for the whole layout.
+     */
+    private List<String> selectedColumns(AutomaExportOptions options) {
+        List<String> columns = options.getProfile() != null ? columnProfiles.get(options.getProfile()) : options.getColumns();
+
+        if (columns != null) {
+            schemas.validate(columns);
+        }
+
+        return columns;
+    }
+
+    /**
+     * Applies the column subset, then encrypts once per distinct payment the IBANs of the rows whose layout prints them
+     * and hands the page over.
+     */
+    private void handlePage(List<GenericPdaDTO> genericPdaDTOS, AutomaCsvSchema[] rowSchemas, UnaryOperator<AutomaCsvSchema> layout,
+                            PageHandler handler) throws IOException {
+        Map<AutomaCsvSchema, List<PagamentoDTO>> payments = new LinkedHashMap<>();
+
+        for (int i = 0; i < rowSchemas.length; i++) {
+            GenericPdaDTO pda = genericPdaDTOS.get(i);
+
+            rowSchemas[i] = layout.apply(rowSchemas[i]);
+
+            if (rowSchemas[i].requiresIban() && pda.getPagamento() != null) {
+                payments.computeIfAbsent(rowSchemas[i], schema -> new ArrayList<>()).add(pda.getPagamento());
+            }
+        }
+
+        Map<Long, String> ibans = new HashMap<>();
+        for (Map.Entry<AutomaCsvSchema, List<PagamentoDTO>> schemaPayments : payments.entrySet()) {
+            long start = System.nanoTime();
+            ibans.putAll(ibanEncryptor.encryptAll(schemaPayments.getValue()));
+            metrics.of(schemaPayments.getKey()).ibanEncrypted(System.nanoTime() - start);
+        }
+
+        handler.handle(genericPdaDTOS, rowSchemas, ibans);
+    }
+
+    private void renderPage(AutomaExportOptions options, AutomaRowWriter rowWriter, List<GenericPdaDTO> genericPdaDTOS,
+                            AutomaCsvSchema[] rowSchemas, Map<Long, String> ibans, Writer writer) throws IOException {
+        if (options.isParallel() && genericPdaDTOS.size() > MIN_CHUNK_SIZE) {
+            this.renderParallel(rowWriter, genericPdaDTOS, rowSchemas, ibans, writer);
+        } else {
+            this.render(rowWriter, genericPdaDTOS, rowSchemas, ibans, 0, rowSchemas.length, writer);
+        }
+    }
+
+    /**
+     * Renders the page in chunks on the render pool and writes the chunks back in their original order.
+     */
+    private void renderParallel(AutomaRowWriter rowWriter, List<GenericPdaDTO> genericPdaDTOS, AutomaCsvSchema[] rowSchemas,
+                                Map<Long, String> ibans, Writer writer) throws IOException {
+        int chunkSize = Math.max(MIN_CHUNK_SIZE, (rowSchemas.length + renderPool.getParallelism() - 1) / renderPool.getParallelism());
+        List<Future<CharArrayWriter>> chunks = new ArrayList<>();
+
+        for (int from = 0; from < rowSchemas.length; from += chunkSize) {
+            int chunkFrom = from;
+            int chunkTo = Math.min(from + chunkSize, rowSchemas.length);
+
+            chunks.add(renderPool.submit(() -> {
+                CharArrayWriter chunk = new CharArrayWriter((chunkTo - chunkFrom) * 512);
+                this.render(rowWriter.newInstance(), genericPdaDTOS, rowSchemas, ibans, chunkFrom, chunkTo, chunk);
+                return chunk;
+            }));
+        }
+
+        try {
+            for (Future<CharArrayWriter> chunk : chunks) {
+                chunk.get().writeTo(writer);
+            }
+        } catch (InterruptedException e) {
+            chunks.forEach(chunk -> chunk.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IOException("Automa export interrupted", e);
+        } catch (ExecutionException e) {
+            chunks.forEach(chunk -> chunk.cancel(true));
+            throw new IOException("Automa export rendering failed", e.getCause());
+        }
+    }
+
+    private void render(AutomaRowWriter rowWriter, List<GenericPdaDTO> genericPdaDTOS, AutomaCsvSchema[] rowSchemas,
+                        Map<Long, String> ibans, int from, int to, Writer writer) throws IOException {
+        int runFrom = from;
+        long runStart = System.nanoTime();
+
+        for (int i = from; i < to; i++) {
+            GenericPdaDTO pda = genericPdaDTOS.get(i);
+            AutomaExportMetrics.SchemaMeters meters = metrics.of(rowSchemas[i]);
+            String iban = rowSchemas[i].requiresIban() ? this.iban(pda.getPagamento(), ibans) : "";
+
+            try {
+                meters.row(rowWriter.writeRow(rowSchemas[i], pda, iban, writer));
+            } catch (RuntimeException e) {
+                meters.failedRow();
+                if (!Constants.MANDATO_FASTWEB.equals(rowSchemas[i].getMandate())) {
+                    throw e;
                 }
-            default:
-                throw new BadRequestAlertException("Not managed group in automa export csv.", "AutomaExportCSV", "notManagedGroup");
+
+                log.error("Automa export of PDA {} with layout {} failed, writing an empty row", pda.getId(), rowSchemas[i].getName(), e);
+                writer.write("null\n");
+            }
+
+            if (i + 1 == to || rowSchemas[i + 1] != rowSchemas[runFrom]) {
+                long now = System.nanoTime();
+                metrics.of(rowSchemas[runFrom]).bodyRendered(now - runStart);
+                runFrom = i + 1;
+                runStart = now;
+            }
+        }
+    }
+
+    private String iban(PagamentoDTO payment, Map<Long, String> ibans) {
+        if (payment == null) {
+            return "";
         }
+
+        String iban = payment.getId() != null ? ibans.get(payment.getId()) : ibanEncryptor.encrypt(payment);
+        return iban != null ? iban : "";
+    }
+
+    @FunctionalInterface
+    private interface PageHandler {
+        void handle(List<GenericPdaDTO> genericPdaDTOS, AutomaCsvSchema[] rowSchemas, Map<Long, String> ibans) throws IOException;
     }
 }
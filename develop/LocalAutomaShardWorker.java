@@ -0,0 +1,42 @@
+package it.ivert.kiop.pda.service.csv;
+
+import it.ivert.kiop.shared.service.criteria.GenericPdaCriteria;
+import it.ivert.kiop.shared.service.dto.UserLiferayDTO;
+import it.ivert.kiop.shared.web.rest.errors.BadRequestAlertException;
+import org.springframework.security.core.Authentication;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * In-process {@link AutomaShardWorker}, rendering the shard with {@link CreateAutomaCsv} on the calling thread.
+ */
+@Component
+public class LocalAutomaShardWorker implements AutomaShardWorker {
+
+    private final CreateAutomaCsv createAutomaCsv;
+
+    public LocalAutomaShardWorker(CreateAutomaCsv createAutomaCsv) {
+        this.createAutomaCsv = createAutomaCsv;
+    }
+
+    @Override
+    public void export(AutomaExportFormat format, GenericPdaCriteria shardCriteria, List<UserLiferayDTO> userLiferayDTO,
+                       Authentication authentication, AutomaExportOptions options, OutputStream outputStream) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+
+        switch (format) {
+            case CSV -> createAutomaCsv.export(shardCriteria, userLiferayDTO, authentication, options, writer);
+            case NDJSON -> createAutomaCsv.exportNdjson(shardCriteria, userLiferayDTO, authentication, options, writer);
+            default -> throw new BadRequestAlertException("Format not supported by sharded exports.", "AutomaExportCSV", "notShardableFormat");
+        }
+
+        writer.flush();
+    }
+}
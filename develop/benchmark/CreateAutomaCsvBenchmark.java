@@ -0,0 +1,214 @@
+package it.ivert.kiop.pda.service.csv;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.ivert.kiop.pda.config.Constants;
+import it.ivert.kiop.pda.service.GenericPdaService;
+import it.ivert.kiop.pda.service.PagamentoService;
+import it.ivert.kiop.shared.service.criteria.GenericPdaCriteria;
+import it.ivert.kiop.shared.service.dto.GenericPdaDTO;
+import it.ivert.kiop.shared.service.dto.PagamentoDTO;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.data.domain.Pageable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Throughput and allocation of the Automa csv export on synthetic PDAs shaped like {@code develop/pda.json}.
+ * {@link GenericPdaService} and {@link PagamentoService} are stubbed, so the benchmark runs offline.
+ * <p>
+ * Run with the GC profiler ({@link #main} enables it): bytes allocated per row are {@code gc.alloc.rate.norm / rows}.
+ * The header only depends on the layout, so it is measured once per layout and not for every rows and parallel pair.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class CreateAutomaCsvBenchmark {
+
+    /**
+     * Distinct PDAs generated; pages are served cycling over them to keep the heap flat at 1M rows.
+     */
+    private static final int POOL_SIZE = 1000;
+
+    @State(Scope.Benchmark)
+    public static class HeaderState {
+
+        @Param({"fastweb-1", "fastweb-2", "enel"})
+        private String layout;
+
+        private AutomaCsvSchema schema;
+
+        @Setup
+        public void setup() {
+            this.schema = new AutomaCsvSchemas().get(groupKey(layout), type(layout));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class BodyState {
+
+        @Param({"1000", "100000", "1000000"})
+        private int rows;
+
+        @Param({"fastweb-1", "fastweb-2", "enel"})
+        private String layout;
+
+        @Param({"false", "true"})
+        private boolean parallel;
+
+        private CreateAutomaCsv createAutomaCsv;
+
+        private int served;
+
+        @Setup
+        public void setup() throws IOException {
+            List<GenericPdaDTO> pool = generatePool(layout);
+
+            GenericPdaService genericPdaService = mock(GenericPdaService.class);
+            when(genericPdaService.findByCriteria(anyString(), any(), any(), any(), any())).thenAnswer(invocation -> {
+                Pageable pageable = invocation.getArgument(1);
+                int size = Math.min(pageable.getPageSize(), rows - served);
+                List<GenericPdaDTO> page = new ArrayList<>(size);
+
+                for (int i = 0; i < size; i++) {
+                    page.add(pool.get((served + i) % POOL_SIZE));
+                }
+
+                served += size;
+                return page;
+            });
+
+            PagamentoService pagamentoService = mock(PagamentoService.class);
+            when(pagamentoService.getBankIbanEncrypt(any())).thenAnswer(invocation -> ((PagamentoDTO) invocation.getArgument(0)).getBankIban());
+
+            this.createAutomaCsv = new CreateAutomaCsv(genericPdaService, new AutomaIbanEncryptor(pagamentoService), new AutomaCsvSchemas(),
+                mock(AutomaExportWatermarkService.class), mock(AutomaExportCache.class),
+                new AutomaExportMetrics(new SimpleMeterRegistry()), mock(AutomaProjectionReader.class),
+                new AutomaColumnProfiles(new StandardEnvironment()), Runtime.getRuntime().availableProcessors());
+        }
+
+        @TearDown
+        public void tearDown() {
+            createAutomaCsv.shutdown();
+        }
+    }
+
+    @Benchmark
+    public void header(HeaderState state, Blackhole blackhole) throws IOException {
+        new AutomaRowWriter().writeHeader(state.schema, new BlackholeWriter(blackhole));
+    }
+
+    @Benchmark
+    public void body(BodyState state, Blackhole blackhole) throws IOException {
+        state.served = 0;
+        state.createAutomaCsv.export(new GenericPdaCriteria(), List.of(), null, AutomaExportOptions.defaults().parallel(state.parallel),
+            new BlackholeWriter(blackhole));
+    }
+
+    /**
+     * Builds the PDA pool from {@code develop/pda.json} (override with {@code -Dautoma.benchmark.pda}): every fourth PDA
+     * drops document, payment, back office and addresses to exercise the null branches.
+     */
+    private static List<GenericPdaDTO> generatePool(String layout) throws IOException {
+        ObjectMapper mapper = new ObjectMapper().findAndRegisterModules()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        ObjectNode template = (ObjectNode) mapper.readTree(new File(System.getProperty("automa.benchmark.pda", "develop/pda.json")));
+
+        template.set("customerDoc", template.remove("documento"));
+        String toponimo = template.path("toponimo").asText("Via");
+        template.putObject("toponimo").put("name", toponimo);
+
+        String groupKey = groupKey(layout);
+        long type = type(layout);
+        Instant createDate = Instant.parse("2026-03-06T17:13:15Z");
+        List<GenericPdaDTO> pool = new ArrayList<>(POOL_SIZE);
+
+        for (int i = 0; i < POOL_SIZE; i++) {
+            ObjectNode node = template.deepCopy();
+            node.put("id", 500_000L + i);
+            node.put("createDate", createDate.minus(i, ChronoUnit.HOURS).toString());
+            ((ObjectNode) node.get("group")).put("groupKey", groupKey);
+            ((ObjectNode) node.get("type")).put("id", type);
+            ((ObjectNode) node.get("customer")).put("nome", "NOME " + i).put("email", "cliente" + i + "@example.it");
+
+            if (node.get("pagamento").isObject()) {
+                ((ObjectNode) node.get("pagamento")).put("id", 700_000L + i).put("bankIban", "ENC" + i + "+/=");
+            }
+
+            if (i % 4 == 3) {
+                node.putNull("customerDoc");
+                node.putNull("pagamento");
+                node.putNull("backOffice");
+                node.putNull("toponimo");
+                node.putNull("indirizzoVia");
+            }
+
+            pool.add(mapper.treeToValue(node, GenericPdaDTO.class));
+        }
+
+        return pool;
+    }
+
+    private static String groupKey(String layout) {
+        return layout.startsWith("fastweb") ? Constants.MANDATO_FASTWEB : Constants.MANDATO_ENEL_ENERGIA;
+    }
+
+    private static long type(String layout) {
+        return layout.equals("fastweb-1") ? 1L : 2L;
+    }
+
+    /**
+     * Sink that consumes the written characters without retaining them.
+     */
+    private static final class BlackholeWriter extends Writer {
+
+        private final Blackhole blackhole;
+
+        private BlackholeWriter(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            blackhole.consume(cbuf);
+            blackhole.consume(len);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(CreateAutomaCsvBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+}